@@ -0,0 +1,39 @@
+/*
+ * zpe.lib.xlsx benchmarks
+ *
+ * Entry point of benchmarks.jar.
+ *
+ * Takes the usual JMH command line and always adds the GC profiler, for the
+ * allocation rate, and the peak heap profiler, so every run reports both
+ * alongside the scores.
+ */
+
+package zpe.lib.xlsx.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public final class BenchmarkMain {
+
+  private BenchmarkMain() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListProfilers()) {
+      // Let JMH handle the informational options
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+
+    Options options = new OptionsBuilder()
+        .parent(cmd)
+        .addProfiler(GCProfiler.class)
+        .addProfiler(PeakHeapProfiler.class)
+        .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * zpe.lib.xlsx benchmarks
+ *
+ * Throughput of the single cell commands on an in-memory sheet, held either by
+ * POI (xlsx_new) or by the compact model (xlsx_new_compact).
+ *
+ * The sheet is filled to the given number of cells before measuring. Writes
+ * overwrite existing cells, and reads and writes walk the filled range row by
+ * row so that the cost of finding the row is included.
+ */
+
+package zpe.lib.xlsx.bench;
+
+import jamiebalfour.zpe.core.ZPEObject;
+import jamiebalfour.zpe.core.ZPEType;
+import jamiebalfour.zpe.core.interfaces.ZPEObjectNativeMethod;
+import jamiebalfour.zpe.core.types.ZPENumber;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class CellBenchmark {
+
+  @Param({"10000", "1000000"})
+  public int cells;
+
+  @Param({"numbers", "strings", "text", "mixed"})
+  public String mix;
+
+  @Param({"xssf", "compact"})
+  public String backend;
+
+  private final ZPEObjectNativeMethod setCell = XLSXPlugin.sheetCommand("set_cell");
+  private final ZPEObjectNativeMethod getCell = XLSXPlugin.sheetCommand("get_cell");
+
+  private CellData.Mix cellMix;
+  private ZPEObject workbook;
+  private ZPEObject sheet;
+  private int rows;
+
+  // Values are created up front so that building them is not measured
+  private ZPEType[] values;
+  private ZPENumber[] rowNumbers;
+  private ZPENumber[] columnNumbers;
+
+  private int cursor = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    cellMix = CellData.mix(mix);
+    rows = cells / CellData.COLUMNS;
+
+    workbook = "compact".equals(backend) ? XLSXPlugin.newCompactWorkbook() : XLSXPlugin.newWorkbook();
+    sheet = XLSXPlugin.firstSheet(workbook);
+    ZPEObjectNativeMethod setRow = XLSXPlugin.sheetCommand("set_row");
+    for (int r = 0; r < rows; r++) {
+      XLSXPlugin.call(setRow, sheet, new ZPENumber(r), CellData.row(cellMix, r));
+    }
+
+    rowNumbers = new ZPENumber[rows];
+    for (int r = 0; r < rows; r++) rowNumbers[r] = new ZPENumber(r);
+    columnNumbers = new ZPENumber[CellData.COLUMNS];
+    for (int c = 0; c < CellData.COLUMNS; c++) columnNumbers[c] = new ZPENumber(c);
+
+    // Enough distinct values to defeat caching without one per cell
+    values = new ZPEType[1024];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = CellData.value(cellMix, rows + i, i % CellData.COLUMNS);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    XLSXPlugin.call(XLSXPlugin.workbookCommand("close"), workbook);
+  }
+
+  private int next() {
+    int i = cursor++;
+    if (cursor == cells) cursor = 0;
+    return i;
+  }
+
+  @Benchmark
+  public ZPEType setCell() {
+    int i = next();
+    return XLSXPlugin.call(setCell, sheet, rowNumbers[i / CellData.COLUMNS], columnNumbers[i % CellData.COLUMNS],
+        values[i & (values.length - 1)]);
+  }
+
+  @Benchmark
+  public ZPEType getCell() {
+    int i = next();
+    return XLSXPlugin.call(getCell, sheet, rowNumbers[i / CellData.COLUMNS], columnNumbers[i % CellData.COLUMNS]);
+  }
+}
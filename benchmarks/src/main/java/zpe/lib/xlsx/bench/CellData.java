@@ -0,0 +1,92 @@
+/*
+ * zpe.lib.xlsx benchmarks
+ *
+ * Deterministic cell values for the benchmarks.
+ *
+ * Values are derived from the cell position, so workbooks of any size can be
+ * generated without holding the data in memory and every run writes the same
+ * content.
+ */
+
+package zpe.lib.xlsx.bench;
+
+import jamiebalfour.zpe.core.ZPEType;
+import jamiebalfour.zpe.core.types.ZPEList;
+import jamiebalfour.zpe.core.types.ZPENumber;
+import jamiebalfour.zpe.core.types.ZPEString;
+
+final class CellData {
+
+  static final int COLUMNS = 10;
+
+  // Short strings drawn from a small set, as in category or status columns
+  private static final String[] WORDS = {
+      "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel", "india", "juliet",
+      "kilo", "lima", "mike", "november", "oscar", "papa", "quebec", "romeo", "sierra", "tango"
+  };
+
+  /**
+   * numbers: every cell is a number.
+   * strings: short strings that repeat, so the shared strings table stays small.
+   * text: longer strings that are unique per cell.
+   * mixed: the columns cycle through numbers, strings and text.
+   */
+  enum Mix {
+    NUMBERS, STRINGS, TEXT, MIXED
+  }
+
+  private CellData() {
+  }
+
+  static Mix mix(String name) {
+    return Mix.valueOf(name.toUpperCase());
+  }
+
+  /**
+   * The value of a cell as a Double or a String.
+   */
+  static Object raw(Mix mix, int row, int col) {
+    switch (mix) {
+      case NUMBERS:
+        return number(row, col);
+      case STRINGS:
+        return string(row, col);
+      case TEXT:
+        return text(row, col);
+      default:
+        switch (col % 3) {
+          case 0:
+            return number(row, col);
+          case 1:
+            return string(row, col);
+          default:
+            return text(row, col);
+        }
+    }
+  }
+
+  static ZPEType value(Mix mix, int row, int col) {
+    Object v = raw(mix, row, col);
+    return (v instanceof Double) ? new ZPENumber((Double) v) : new ZPEString((String) v);
+  }
+
+  static ZPEList row(Mix mix, int row) {
+    ZPEList values = new ZPEList();
+    for (int col = 0; col < COLUMNS; col++) {
+      values.add(value(mix, row, col));
+    }
+    return values;
+  }
+
+  private static Double number(int row, int col) {
+    return row * 1.25 + col;
+  }
+
+  private static String string(int row, int col) {
+    return WORDS[(row + col) % WORDS.length];
+  }
+
+  private static String text(int row, int col) {
+    return "Row " + row + " column " + col + " holds a longer free text value for " + WORDS[row % WORDS.length];
+  }
+}
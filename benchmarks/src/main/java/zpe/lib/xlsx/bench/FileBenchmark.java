@@ -0,0 +1,137 @@
+/*
+ * zpe.lib.xlsx benchmarks
+ *
+ * Time to open and save generated workbooks.
+ *
+ * Each trial generates one file of the given size and mix with POI's streaming
+ * writer, so generating the largest files does not need the memory being
+ * measured. open loads that file into a full workbook, and save writes an
+ * already opened copy of it back out.
+ */
+
+package zpe.lib.xlsx.bench;
+
+import jamiebalfour.zpe.core.ZPEObject;
+import jamiebalfour.zpe.core.ZPEType;
+import jamiebalfour.zpe.core.interfaces.ZPEObjectNativeMethod;
+import jamiebalfour.zpe.core.types.ZPEString;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+public class FileBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class GeneratedFile {
+
+    @Param({"10000", "1000000", "5000000"})
+    public int cells;
+
+    @Param({"numbers", "strings", "text", "mixed"})
+    public String mix;
+
+    File file;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+      CellData.Mix cellMix = CellData.mix(mix);
+      file = File.createTempFile("xlsx-bench-" + cells + "-" + mix + "-", ".xlsx");
+
+      // Shared strings are used as in files saved by Excel
+      SXSSFWorkbook workbook = new SXSSFWorkbook(null, 1000, true, true);
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+        Sheet sheet = workbook.createSheet("Sheet1");
+        int rows = cells / CellData.COLUMNS;
+        for (int r = 0; r < rows; r++) {
+          Row row = sheet.createRow(r);
+          for (int c = 0; c < CellData.COLUMNS; c++) {
+            Object v = CellData.raw(cellMix, r, c);
+            if (v instanceof Double) row.createCell(c).setCellValue((Double) v);
+            else row.createCell(c).setCellValue((String) v);
+          }
+        }
+        workbook.write(out);
+      } finally {
+        workbook.close();
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+      file.delete();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Workbook {
+    final ZPEObjectNativeMethod open = XLSXPlugin.workbookCommand("open");
+    final ZPEObjectNativeMethod save = XLSXPlugin.workbookCommand("save");
+    final ZPEObjectNativeMethod close = XLSXPlugin.workbookCommand("close");
+
+    ZPEObject workbook;
+    File target;
+
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+      workbook = XLSXPlugin.newWorkbook();
+      target = File.createTempFile("xlsx-bench-save-", ".xlsx");
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+      XLSXPlugin.call(close, workbook);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+      target.delete();
+    }
+  }
+
+  /**
+   * Opened outside of the measurement for save to write out.
+   */
+  @State(Scope.Thread)
+  public static class OpenedWorkbook extends Workbook {
+
+    @Setup(Level.Invocation)
+    public void load(GeneratedFile generated) {
+      XLSXPlugin.call(open, workbook, new ZPEString(generated.file.getPath()));
+    }
+  }
+
+  @Benchmark
+  public ZPEType open(GeneratedFile generated, Workbook wb) {
+    return XLSXPlugin.call(wb.open, wb.workbook, new ZPEString(generated.file.getPath()));
+  }
+
+  @Benchmark
+  public ZPEType save(OpenedWorkbook wb) {
+    return XLSXPlugin.call(wb.save, wb.workbook, new ZPEString(wb.target.getPath()));
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * zpe.lib.xlsx benchmarks
+ *
+ * Access to the plugin's commands.
+ *
+ * The plugin lives in the unnamed package, which cannot be imported from here
+ * and which JMH does not allow benchmarks in, so the command instances are
+ * looked up reflectively once and then called through ZPEObjectNativeMethod
+ * exactly as ZPE would call them.
+ */
+
+package zpe.lib.xlsx.bench;
+
+import jamiebalfour.zpe.core.ZPEObject;
+import jamiebalfour.zpe.core.ZPEType;
+import jamiebalfour.zpe.core.interfaces.ZPECustomFunction;
+import jamiebalfour.zpe.core.interfaces.ZPELibrary;
+import jamiebalfour.zpe.core.interfaces.ZPEObjectNativeMethod;
+import jamiebalfour.zpe.core.types.ZPENumber;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+final class XLSXPlugin {
+
+  private static final ZPELibrary LIBRARY;
+  private static final Map<String, ZPECustomFunction> FUNCTIONS;
+
+  static {
+    try {
+      LIBRARY = (ZPELibrary) Class.forName("Plugin").getDeclaredConstructor().newInstance();
+      FUNCTIONS = LIBRARY.getFunctions();
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private XLSXPlugin() {
+  }
+
+  static ZPECustomFunction function(String name) {
+    ZPECustomFunction f = FUNCTIONS.get(name);
+    if (f == null) throw new IllegalArgumentException("No such function: " + name);
+    return f;
+  }
+
+  static ZPEType callFunction(String name, Object... args) {
+    ZPECustomFunction f = function(name);
+    String[] names = f.getParameterNames();
+    HashMap<String, Object> params = new HashMap<>();
+    for (int i = 0; i < args.length; i++) params.put(names[i], args[i]);
+    return f.MainMethod(params, null, null);
+  }
+
+  /**
+   * Returns the shared command instance registered on every sheet.
+   */
+  static ZPEObjectNativeMethod sheetCommand(String name) {
+    try {
+      Field f = Class.forName("Plugin$ZPEXLSXSheetObject").getDeclaredField("COMMANDS");
+      f.setAccessible(true);
+      for (ZPEObjectNativeMethod m : (ZPEObjectNativeMethod[]) f.get(null)) {
+        if (m.getName().equals(name)) return m;
+      }
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+    throw new IllegalArgumentException("No such sheet command: " + name);
+  }
+
+  /**
+   * Workbook commands are created per workbook, so a fresh instance of the
+   * command class is made here.
+   */
+  static ZPEObjectNativeMethod workbookCommand(String name) {
+    try {
+      Constructor<?> c = Class.forName("Plugin$ZPEXLSXWorkbookObject$" + name + "_Command").getDeclaredConstructor();
+      c.setAccessible(true);
+      return (ZPEObjectNativeMethod) c.newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalArgumentException("No such workbook command: " + name, e);
+    }
+  }
+
+  static ZPEType call(ZPEObjectNativeMethod m, ZPEObject parent, ZPEType... args) {
+    String[] names = m.getParameterNames();
+    HashMap<String, ZPEType> params = new HashMap<>();
+    for (int i = 0; i < args.length; i++) params.put(names[i], args[i]);
+    return m.run(params, parent);
+  }
+
+  static ZPEObject newWorkbook() {
+    return (ZPEObject) callFunction("xlsx_new");
+  }
+
+  static ZPEObject newCompactWorkbook() {
+    return (ZPEObject) callFunction("xlsx_new_compact");
+  }
+
+  static ZPEObject firstSheet(ZPEObject workbook) {
+    return (ZPEObject) call(workbookCommand("get_sheet"), workbook, new ZPENumber(0));
+  }
+}
@@ -5,11 +5,27 @@
  *
  * Global functions:
  *   - xlsx_new() => ZPEXLSXWorkbook
- *   - xlsx_open(string path) => ZPEXLSXWorkbook | false
+ *   - xlsx_new_streaming(number window_size) => ZPEXLSXWorkbook
+ *   - xlsx_new_compact() => ZPEXLSXWorkbook
+ *   - xlsx_open(string path, boolean lazy) => ZPEXLSXWorkbook | false
+ *   - xlsx_open_compact(string path) => ZPEXLSXWorkbook | false
+ *   - xlsx_from_bytes(string data) => ZPEXLSXWorkbook | false
+ *   - xlsx_open_template(string path) => ZPEXLSXWorkbook | false
+ *   - xlsx_template_stats() => map
+ *   - xlsx_open_readonly(string path, mixed sheet) => ZPEXLSXRowReader | false
+ *   - xlsx_read_all_parallel(string path, number threads) => map | false
+ *   - xlsx_query(string path, mixed sheet, map query) => list | false
+ *   - xlsx_append_rows(string path, mixed sheet, list rows) => number | false
+ *   - xlsx_from_csv(string csv_path, string xlsx_path, map options) => number | false
+ *   - xlsx_to_csv(string xlsx_path, mixed sheet, string csv_path, map options) => number | false
+ *   - xlsx_stats() => map
+ *   - xlsx_stats_enabled(boolean enabled, boolean reset) => boolean
+ *   - xlsx_last_error() => string
  *
  * Objects:
  *   - ZPEXLSXWorkbook (workbook)
  *   - ZPEXLSXSheet (sheet)
+ *   - ZPEXLSXRowReader (forward-only row reader)
  *
  * Permissions (suggested):
  *   - In-memory creation: 0
@@ -21,18 +37,72 @@ import jamiebalfour.generic.JBBinarySearchTree;
 import jamiebalfour.zpe.core.*;
 import jamiebalfour.zpe.core.interfaces.*;
 import jamiebalfour.zpe.core.types.ZPEBoolean;
+import jamiebalfour.zpe.core.types.ZPEList;
+import jamiebalfour.zpe.core.types.ZPEMap;
 import jamiebalfour.zpe.core.types.ZPENumber;
 import jamiebalfour.zpe.core.types.ZPEString;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.SpreadsheetVersion;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
 import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.WorkbookUtil;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.model.SharedStringsTable;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCell;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STCellType;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.DoubleSummaryStatistics;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.DoubleConsumer;
+import java.util.zip.Deflater;
 
 public class Plugin implements ZPELibrary {
 
@@ -40,7 +110,25 @@ public class Plugin implements ZPELibrary {
   public Map<String, ZPECustomFunction> getFunctions() {
     HashMap<String, ZPECustomFunction> arr = new HashMap<>();
     arr.put("xlsx_new", new XLSXNew());
+    arr.put("xlsx_new_streaming", new XLSXNewStreaming());
+    arr.put("xlsx_new_compact", new XLSXNewCompact());
     arr.put("xlsx_open", new XLSXOpen());
+    arr.put("xlsx_open_compact", new XLSXOpenCompact());
+    arr.put("xlsx_from_bytes", new XLSXFromBytes());
+    arr.put("xlsx_open_template", new XLSXOpenTemplate());
+    arr.put("xlsx_template_stats", new XLSXTemplateStats());
+    arr.put("xlsx_open_readonly", new XLSXOpenReadOnly());
+    arr.put("xlsx_read_all_parallel", new XLSXReadAllParallel());
+    arr.put("xlsx_query", new XLSXQuery());
+    arr.put("xlsx_append_rows", new XLSXAppendRows());
+    arr.put("xlsx_from_csv", new XLSXFromCSV());
+    arr.put("xlsx_to_csv", new XLSXToCSV());
+    arr.put("xlsx_stats", new XLSXStats());
+    arr.put("xlsx_stats_enabled", new XLSXStatsEnabled());
+    arr.put("xlsx_last_error", new XLSXLastError());
+
+    // Wrapped once here so that disabled metrics cost a single flag check per call
+    arr.replaceAll((name, f) -> XLSXMetrics.timed(name, f));
     return arr;
   }
 
@@ -52,6 +140,7 @@ public class Plugin implements ZPELibrary {
     HashMap<String, Class<? extends ZPEStructure>> obj = new HashMap<>();
     obj.put("ZPEXLSXWorkbook", ZPEXLSXWorkbookObject.class);
     obj.put("ZPEXLSXSheet", ZPEXLSXSheetObject.class);
+    obj.put("ZPEXLSXRowReader", ZPEXLSXRowReaderObject.class);
     return obj;
   }
 
@@ -117,6 +206,7 @@ public class Plugin implements ZPELibrary {
         wb.newFile();
         return wb;
       } catch (Exception e) {
+        XLSXMetrics.recordError(e);
         return new ZPEBoolean(false);
       }
     }
@@ -133,6 +223,110 @@ public class Plugin implements ZPELibrary {
     }
   }
 
+  // =============================================================================
+  // Global function: xlsx_new_streaming(window_size)
+  // =============================================================================
+  public static final class XLSXNewStreaming implements ZPECustomFunction {
+
+    @Override
+    public String getManualEntry() {
+      return "Creates a new write-only XLSX workbook that keeps only the last window_size rows of each sheet in memory. " +
+          "Older rows are flushed to temporary files and can no longer be read or changed.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_new_streaming ([{number} window_size])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 0;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{"window_size"};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      try {
+        int windowSize = SXSSFWorkbook.DEFAULT_WINDOW_SIZE;
+        if (params.get("window_size") != null) {
+          windowSize = HelperFunctions.stringToInteger(params.get("window_size").toString());
+        }
+        if (windowSize < 1) return new ZPEBoolean(false);
+
+        ZPEXLSXWorkbookObject wb = new ZPEXLSXWorkbookObject(runtime, fn);
+        wb.newStreamingFile(windowSize);
+        return wb;
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        return new ZPEBoolean(false);
+      }
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 0;
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.OBJECT, YASSByteCodes.BOOLEAN_TYPE};
+    }
+  }
+
+  // =============================================================================
+  // Global function: xlsx_new_compact()
+  // =============================================================================
+  public static final class XLSXNewCompact implements ZPECustomFunction {
+
+    @Override
+    public String getManualEntry() {
+      return "Creates a new XLSX workbook that stores cell values in compact arrays, using a small fraction of the memory " +
+          "of xlsx_new. Styles and formulas are not supported, and the file is only built when the workbook is saved.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_new_compact ([])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 0;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      try {
+        ZPEXLSXWorkbookObject wb = new ZPEXLSXWorkbookObject(runtime, fn);
+        wb.newCompactFile();
+        return wb;
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        return new ZPEBoolean(false);
+      }
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 0;
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.OBJECT, YASSByteCodes.BOOLEAN_TYPE};
+    }
+  }
+
   // =============================================================================
   // Global function: xlsx_open(path)
   // =============================================================================
@@ -140,12 +334,13 @@ public class Plugin implements ZPELibrary {
 
     @Override
     public String getManualEntry() {
-      return "Opens an XLSX workbook from disk.";
+      return "Opens an XLSX workbook from disk. With lazy set to true each sheet is only parsed the first time " +
+          "it is fetched with get_sheet.";
     }
 
     @Override
     public String getManualHeader() {
-      return "xlsx_open ([{string} path])";
+      return "xlsx_open ([{string} path, {boolean} lazy])";
     }
 
     @Override
@@ -155,7 +350,7 @@ public class Plugin implements ZPELibrary {
 
     @Override
     public String[] getParameterNames() {
-      return new String[]{"path"};
+      return new String[]{"path", "lazy"};
     }
 
     @Override
@@ -164,10 +359,13 @@ public class Plugin implements ZPELibrary {
         String path = (params.get("path") == null) ? "" : params.get("path").toString();
         if (path.isEmpty()) return new ZPEBoolean(false);
 
+        boolean lazy = params.get("lazy") != null && "true".equals(params.get("lazy").toString());
+
         ZPEXLSXWorkbookObject wb = new ZPEXLSXWorkbookObject(runtime, fn);
-        return wb.open(path) ? wb : new ZPEBoolean(false);
+        return wb.open(path, lazy) ? wb : new ZPEBoolean(false);
 
       } catch (Exception e) {
+        XLSXMetrics.recordError(e);
         return new ZPEBoolean(false);
       }
     }
@@ -185,95 +383,3475 @@ public class Plugin implements ZPELibrary {
   }
 
   // =============================================================================
-  // ZPEXLSXWorkbookObject
+  // Global function: xlsx_open_compact(path)
   // =============================================================================
-  public static final class ZPEXLSXWorkbookObject extends ZPEStructure {
-
-    private static final long serialVersionUID = 3341840321048823111L;
+  public static final class XLSXOpenCompact implements ZPECustomFunction {
 
-    private transient XSSFWorkbook workbook;
-
-    public ZPEXLSXWorkbookObject(ZPERuntimeEnvironment z, ZPEPropertyWrapper parent) {
-      super(z, parent, "ZPEXLSXWorkbook");
+    @Override
+    public String getManualEntry() {
+      return "Opens an XLSX workbook from disk into the compact model used by xlsx_new_compact. Only cell values are " +
+          "read: formulas keep their cached result and styles are dropped.";
+    }
 
-      addNativeMethod("new_file", new new_file_Command());
-      addNativeMethod("open", new open_Command());
-      addNativeMethod("save", new save_Command());
-      addNativeMethod("close", new close_Command());
+    @Override
+    public String getManualHeader() {
+      return "xlsx_open_compact ([{string} path])";
+    }
 
-      addNativeMethod("add_sheet", new add_sheet_Command());
-      addNativeMethod("get_sheet", new get_sheet_Command());
-      addNativeMethod("get_sheet_count", new get_sheet_count_Command());
+    @Override
+    public int getMinimumParameters() {
+      return 1;
     }
 
-    void newFile() {
-      closeQuietly();
-      workbook = new XSSFWorkbook();
-      workbook.createSheet("Sheet1");
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{"path"};
     }
 
-    boolean open(String path) {
-      closeQuietly();
-      try (FileInputStream fis = new FileInputStream(path)) {
-        workbook = new XSSFWorkbook(fis);
-        return true;
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      try {
+        String path = (params.get("path") == null) ? "" : params.get("path").toString();
+        if (path.isEmpty()) return new ZPEBoolean(false);
+
+        ZPEXLSXWorkbookObject wb = new ZPEXLSXWorkbookObject(runtime, fn);
+        return wb.openCompact(path) ? wb : new ZPEBoolean(false);
+
       } catch (Exception e) {
-        workbook = null;
-        return false;
+        XLSXMetrics.recordError(e);
+        return new ZPEBoolean(false);
       }
     }
 
-    boolean save(String path) {
-      if (workbook == null) return false;
-      try (FileOutputStream fos = new FileOutputStream(path)) {
-        workbook.write(fos);
-        fos.flush();
-        return true;
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 3;
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.OBJECT, YASSByteCodes.BOOLEAN_TYPE};
+    }
+  }
+
+  // =============================================================================
+  // Global function: xlsx_from_bytes(data)
+  // =============================================================================
+  public static final class XLSXFromBytes implements ZPECustomFunction {
+
+    @Override
+    public String getManualEntry() {
+      return "Opens an XLSX workbook from Base64 encoded file contents, such as those produced by to_bytes.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_from_bytes ([{string} data])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 1;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{"data"};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      try {
+        String data = (params.get("data") == null) ? "" : params.get("data").toString();
+        if (data.isEmpty()) return new ZPEBoolean(false);
+
+        ZPEXLSXWorkbookObject wb = new ZPEXLSXWorkbookObject(runtime, fn);
+        return wb.openBytes(Base64.getMimeDecoder().decode(data)) ? wb : new ZPEBoolean(false);
+
       } catch (Exception e) {
-        return false;
+        XLSXMetrics.recordError(e);
+        return new ZPEBoolean(false);
       }
     }
 
-    boolean close() {
-      return closeQuietly();
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 0;
     }
 
-    private boolean closeQuietly() {
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.OBJECT, YASSByteCodes.BOOLEAN_TYPE};
+    }
+  }
+
+  // =============================================================================
+  // Global function: xlsx_open_template(path)
+  // =============================================================================
+  public static final class XLSXOpenTemplate implements ZPECustomFunction {
+
+    @Override
+    public String getManualEntry() {
+      return "Opens an independent copy of a template workbook. The template is parsed once and kept " +
+          "uncompressed in a process-wide cache until it changes on disk or is evicted, so later opens skip " +
+          "reading and inflating the file.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_open_template ([{string} path])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 1;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{"path"};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
       try {
-        if (workbook != null) {
-          workbook.close();
-        }
-        workbook = null;
-        return true;
+        String path = (params.get("path") == null) ? "" : params.get("path").toString();
+        if (path.isEmpty()) return new ZPEBoolean(false);
+
+        ZPEXLSXWorkbookObject wb = new ZPEXLSXWorkbookObject(runtime, fn);
+        return wb.openTemplate(path) ? wb : new ZPEBoolean(false);
+
       } catch (Exception e) {
-        workbook = null;
-        return false;
+        XLSXMetrics.recordError(e);
+        return new ZPEBoolean(false);
       }
     }
 
-    XSSFWorkbook getWorkbook() {
-      return workbook;
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 3;
     }
 
-    // ----------------------------
-    // Native methods
-    // ----------------------------
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.OBJECT, YASSByteCodes.BOOLEAN_TYPE};
+    }
+  }
 
-    static final class new_file_Command implements ZPEObjectNativeMethod {
-      @Override
-      public String[] getParameterNames() {
-        return new String[]{};
-      }
+  // =============================================================================
+  // Global function: xlsx_template_stats()
+  // =============================================================================
+  public static final class XLSXTemplateStats implements ZPECustomFunction {
 
-      @Override
-      public String[] getParameterTypes() {
-        return new String[]{};
+    @Override
+    public String getManualEntry() {
+      return "Returns the number of entries, bytes held, hits, misses and evictions of the template cache.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_template_stats ([])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 0;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      ZPEMap stats = new ZPEMap();
+      for (Map.Entry<String, Long> e : XLSXTemplateCache.getInstance().getStats().entrySet()) {
+        stats.put(new ZPEString(e.getKey()), new ZPENumber(e.getValue()));
       }
+      return stats;
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 0;
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.ASSOCIATIVE_ARRAY_TYPE};
+    }
+  }
+
+  // =============================================================================
+  // Global function: xlsx_open_readonly(path, sheet)
+  // =============================================================================
+  public static final class XLSXOpenReadOnly implements ZPECustomFunction {
+
+    @Override
+    public String getManualEntry() {
+      return "Opens a single sheet of an XLSX file for forward-only reading without loading the workbook into memory. " +
+          "The sheet can be given by name or index and defaults to the first sheet.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_open_readonly ([{string} path, {mixed} sheet])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 1;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{"path", "sheet"};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      try {
+        String path = (params.get("path") == null) ? "" : params.get("path").toString();
+        if (path.isEmpty()) return new ZPEBoolean(false);
+        String sheet = (params.get("sheet") == null) ? "0" : params.get("sheet").toString();
+
+        XLSXSheetReader reader = XLSXSheetReader.open(new File(path), sheet);
+        if (reader == null) return new ZPEBoolean(false);
+        return new ZPEXLSXRowReaderObject(runtime, fn, reader);
+
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        return new ZPEBoolean(false);
+      }
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 3;
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.OBJECT, YASSByteCodes.BOOLEAN_TYPE};
+    }
+  }
+
+  // =============================================================================
+  // Global function: xlsx_read_all_parallel(path, threads)
+  // =============================================================================
+  public static final class XLSXReadAllParallel implements ZPECustomFunction {
+
+    @Override
+    public String getManualEntry() {
+      return "Reads every sheet of an XLSX file, parsing the sheets in parallel, and returns a map of sheet name to " +
+          "a list of rows. Each row is a list of cell values.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_read_all_parallel ([{string} path, {number} threads])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 1;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{"path", "threads"};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      String path = (params.get("path") == null) ? "" : params.get("path").toString();
+      if (path.isEmpty()) return new ZPEBoolean(false);
+
+      int threads = Runtime.getRuntime().availableProcessors();
+      if (params.get("threads") != null) {
+        try {
+          threads = HelperFunctions.stringToInteger(params.get("threads").toString());
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+      if (threads < 1) return new ZPEBoolean(false);
+
+      OPCPackage pkg = null;
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        File file = new File(path);
+        long start = System.nanoTime();
+        pkg = OPCPackage.open(file, PackageAccess.READ);
+        LinkedHashMap<String, XLSXSheetReader> readers = XLSXSheetReader.openAll(pkg);
+
+        ArrayList<Callable<ZPEList>> tasks = new ArrayList<>();
+        for (XLSXSheetReader reader : readers.values()) {
+          tasks.add(() -> {
+            try (XLSXSheetReader r = reader) {
+              return readAllRows(r);
+            }
+          });
+        }
+
+        List<Future<ZPEList>> results = pool.invokeAll(tasks);
+
+        ZPEMap sheets = new ZPEMap();
+        int i = 0;
+        for (String name : readers.keySet()) {
+          sheets.put(new ZPEString(name), results.get(i++).get());
+        }
+        XLSXMetrics.recordRead(file.length(), System.nanoTime() - start);
+        return sheets;
+
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        return new ZPEBoolean(false);
+      } finally {
+        pool.shutdownNow();
+        if (pkg != null) pkg.revert();
+      }
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 3;
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.ASSOCIATIVE_ARRAY_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+    }
+  }
+
+  // =============================================================================
+  // Global function: xlsx_query(path, sheet, query)
+  // =============================================================================
+  public static final class XLSXQuery implements ZPECustomFunction {
+
+    @Override
+    public String getManualEntry() {
+      return "Reads the rows of one sheet that match a query while streaming the file. The query map may contain " +
+          "columns (list of column indexes to return), where (map of column index to the value it must equal) " +
+          "and limit (maximum number of rows). Cells outside the requested columns are never built.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_query ([{string} path, {mixed} sheet, {map} query])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 2;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{"path", "sheet", "query"};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      String path = (params.get("path") == null) ? "" : params.get("path").toString();
+      String sheet = (params.get("sheet") == null) ? "0" : params.get("sheet").toString();
+      if (path.isEmpty()) return new ZPEBoolean(false);
+
+      try (XLSXSheetReader reader = XLSXSheetReader.open(new File(path), sheet)) {
+        if (reader == null) return new ZPEBoolean(false);
+
+        Object query = params.get("query");
+        ZPEMap q = (query instanceof ZPEMap) ? (ZPEMap) query : new ZPEMap();
+
+        int[] columns = null;
+        ZPEType c = q.get(new ZPEString("columns"));
+        if (c instanceof ZPEList) {
+          ZPEList list = (ZPEList) c;
+          columns = new int[list.size()];
+          for (int i = 0; i < columns.length; i++) {
+            columns[i] = asInt(list.get(i));
+            if (columns[i] < 0) return new ZPEBoolean(false);
+          }
+        }
+
+        HashMap<Integer, Object> where = new HashMap<>();
+        ZPEType w = q.get(new ZPEString("where"));
+        if (w instanceof ZPEMap) {
+          ZPEMap map = (ZPEMap) w;
+          for (ZPEType key : map.keySet()) {
+            where.put(asInt(key), fromZPEType(map.get(key)));
+          }
+        }
+
+        ZPEType l = q.get(new ZPEString("limit"));
+        int limit = (l == null) ? -1 : asInt(l);
+
+        // Only the projected and filtered columns are parsed
+        if (columns != null) {
+          BitSet wanted = new BitSet();
+          for (int col : columns) wanted.set(col);
+          for (int col : where.keySet()) wanted.set(col);
+          reader.setColumns(wanted);
+        }
+
+        ZPEList rows = new ZPEList();
+        while ((limit < 0 || rows.size() < limit) && reader.nextRow()) {
+          ArrayList<Object> values = reader.getValues();
+          if (!matches(values, where)) continue;
+
+          if (columns == null) {
+            rows.add(toZPEList(values));
+          } else {
+            ZPEList row = new ZPEList();
+            for (int col : columns) {
+              row.add(toZPEType(col < values.size() ? values.get(col) : null));
+            }
+            rows.add(row);
+          }
+        }
+        return rows;
+
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        return new ZPEBoolean(false);
+      }
+    }
+
+    private static boolean matches(ArrayList<Object> values, HashMap<Integer, Object> where) {
+      for (Map.Entry<Integer, Object> e : where.entrySet()) {
+        int col = e.getKey();
+        Object v = (col < values.size()) ? values.get(col) : null;
+        if (v == null) v = "";
+        if (!v.equals(e.getValue())) return false;
+      }
+      return true;
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 3;
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.LIST_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+    }
+  }
+
+  // =============================================================================
+  // Global function: xlsx_append_rows(path, sheet, rows)
+  // =============================================================================
+  public static final class XLSXAppendRows implements ZPECustomFunction {
+
+    @Override
+    public String getManualEntry() {
+      return "Appends rows to the end of one sheet of an existing XLSX file without loading the workbook. Only that " +
+          "sheet is rewritten, every other part of the file is copied unchanged. Returns the number of rows appended.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_append_rows ([{string} path, {mixed} sheet, {list} rows])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 3;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{"path", "sheet", "rows"};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      String path = (params.get("path") == null) ? "" : params.get("path").toString();
+      String sheet = (params.get("sheet") == null) ? "0" : params.get("sheet").toString();
+      if (path.isEmpty() || !(params.get("rows") instanceof ZPEList)) return new ZPEBoolean(false);
+
+      try {
+        ZPEList rows = (ZPEList) params.get("rows");
+        ArrayList<List<Object>> values = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+          ZPEType row = rows.get(i);
+          if (!(row instanceof ZPEList)) return new ZPEBoolean(false);
+
+          ZPEList cells = (ZPEList) row;
+          ArrayList<Object> rowValues = new ArrayList<>(cells.size());
+          for (int c = 0; c < cells.size(); c++) {
+            rowValues.add(fromZPEType(cells.get(c)));
+          }
+          values.add(rowValues);
+        }
+
+        File file = new File(path);
+        long start = System.nanoTime();
+        if (!XLSXAppender.appendRows(file, sheet, values)) return new ZPEBoolean(false);
+        XLSXMetrics.recordWrite(file.length(), System.nanoTime() - start);
+        return new ZPENumber(values.size());
+
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        return new ZPEBoolean(false);
+      }
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 3;
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+    }
+  }
+
+  // =============================================================================
+  // Global function: xlsx_from_csv(csv_path, xlsx_path, options)
+  // =============================================================================
+  public static final class XLSXFromCSV implements ZPECustomFunction {
+
+    @Override
+    public String getManualEntry() {
+      return "Converts a CSV or TSV file into an XLSX file without loading either into memory. Options: delimiter " +
+          "(default \",\", use \"tab\" for TSV), infer_types (default false), sheet_name and window_size. " +
+          "Returns the number of rows written.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_from_csv ([{string} csv_path, {string} xlsx_path, {map} options])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 2;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{"csv_path", "xlsx_path", "options"};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      String csvPath = (params.get("csv_path") == null) ? "" : params.get("csv_path").toString();
+      String xlsxPath = (params.get("xlsx_path") == null) ? "" : params.get("xlsx_path").toString();
+      if (csvPath.isEmpty() || xlsxPath.isEmpty()) return new ZPEBoolean(false);
+
+      ZPEXLSXWorkbookObject wb = new ZPEXLSXWorkbookObject(runtime, fn);
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(csvPath), StandardCharsets.UTF_8), CSV_BUFFER_SIZE)) {
+        Object options = params.get("options");
+        char delimiter = csvDelimiter(options);
+        boolean inferTypes = "true".equalsIgnoreCase(option(options, "infer_types", "false"));
+        String sheetName = option(options, "sheet_name", "Sheet1");
+        int windowSize = HelperFunctions.stringToInteger(option(options, "window_size", String.valueOf(SXSSFWorkbook.DEFAULT_WINDOW_SIZE)));
+        if (windowSize < 1) return new ZPEBoolean(false);
+
+        wb.newStreamingFile(windowSize);
+        wb.getWorkbook().setSheetName(0, sheetName);
+
+        int rows = XLSXCsv.copyToSheet(in, wb.getWorkbook().getSheetAt(0), delimiter, inferTypes);
+        if (!wb.save(xlsxPath)) return new ZPEBoolean(false);
+        return new ZPENumber(rows);
+
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        return new ZPEBoolean(false);
+      } finally {
+        wb.close();
+      }
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 3;
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+    }
+  }
+
+  // =============================================================================
+  // Global function: xlsx_to_csv(xlsx_path, sheet, csv_path, options)
+  // =============================================================================
+  public static final class XLSXToCSV implements ZPECustomFunction {
+
+    @Override
+    public String getManualEntry() {
+      return "Converts one sheet of an XLSX file into a CSV or TSV file without loading either into memory. " +
+          "Options: delimiter (default \",\", use \"tab\" for TSV). Returns the number of lines written.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_to_csv ([{string} xlsx_path, {mixed} sheet, {string} csv_path, {map} options])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 3;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{"xlsx_path", "sheet", "csv_path", "options"};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      String xlsxPath = (params.get("xlsx_path") == null) ? "" : params.get("xlsx_path").toString();
+      String csvPath = (params.get("csv_path") == null) ? "" : params.get("csv_path").toString();
+      String sheet = (params.get("sheet") == null) ? "0" : params.get("sheet").toString();
+      if (xlsxPath.isEmpty() || csvPath.isEmpty()) return new ZPEBoolean(false);
+
+      File target = new File(csvPath).getAbsoluteFile();
+      File tmp = null;
+      try (XLSXSheetReader reader = XLSXSheetReader.open(new File(xlsxPath), sheet)) {
+        if (reader == null) return new ZPEBoolean(false);
+        char delimiter = csvDelimiter(params.get("options"));
+
+        tmp = File.createTempFile(".csv-", ".tmp", target.getParentFile());
+        int lines;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8), CSV_BUFFER_SIZE)) {
+          lines = XLSXCsv.copyFromSheet(reader, out, delimiter);
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return new ZPENumber(lines);
+
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        return new ZPEBoolean(false);
+      } finally {
+        if (tmp != null) tmp.delete();
+      }
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 3;
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+    }
+  }
+
+  // =============================================================================
+  // Global function: xlsx_stats()
+  // =============================================================================
+  public static final class XLSXStats implements ZPECustomFunction {
+
+    @Override
+    public String getManualEntry() {
+      return "Returns the plugin metrics: bytes read and written, parse and serialise time, the error count, the last " +
+          "error and, per function and method, the call count, total and mean time and a latency histogram. " +
+          "Call and time figures are only collected while metrics are enabled with xlsx_stats_enabled.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_stats ([])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 0;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      return toZPEMap(XLSXMetrics.snapshot());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ZPEMap toZPEMap(Map<String, Object> values) {
+      ZPEMap map = new ZPEMap();
+      for (Map.Entry<String, Object> e : values.entrySet()) {
+        Object v = e.getValue();
+        ZPEType t;
+        if (v instanceof Map) t = toZPEMap((Map<String, Object>) v);
+        else if (v instanceof Long) t = new ZPENumber((Long) v);
+        else t = toZPEType(v);
+        map.put(new ZPEString(e.getKey()), t);
+      }
+      return map;
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 0;
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.ASSOCIATIVE_ARRAY_TYPE};
+    }
+  }
+
+  // =============================================================================
+  // Global function: xlsx_stats_enabled(enabled, reset)
+  // =============================================================================
+  public static final class XLSXStatsEnabled implements ZPECustomFunction {
+
+    @Override
+    public String getManualEntry() {
+      return "Switches metrics collection on or off (off by default) and optionally resets all metrics. " +
+          "Returns the previous setting.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_stats_enabled ([{boolean} enabled, {boolean} reset])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 1;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{"enabled", "reset"};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      boolean previous = XLSXMetrics.isEnabled();
+      if (params.get("reset") != null && "true".equals(params.get("reset").toString())) {
+        XLSXMetrics.reset();
+      }
+      XLSXMetrics.setEnabled(params.get("enabled") != null && "true".equals(params.get("enabled").toString()));
+      return new ZPEBoolean(previous);
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 0;
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+    }
+  }
+
+  // =============================================================================
+  // Global function: xlsx_last_error()
+  // =============================================================================
+  public static final class XLSXLastError implements ZPECustomFunction {
+
+    @Override
+    public String getManualEntry() {
+      return "Returns the exception behind the most recent false result from any XLSX function or method " +
+          "called on this thread, or an empty string if there has been none.";
+    }
+
+    @Override
+    public String getManualHeader() {
+      return "xlsx_last_error ([])";
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return 0;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return new String[]{};
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      return new ZPEString(XLSXMetrics.getLastError());
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return 0;
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return new byte[]{YASSByteCodes.STRING_TYPE};
+    }
+  }
+
+  // =============================================================================
+  // ZPEXLSXWorkbookObject
+  // =============================================================================
+  public static final class ZPEXLSXWorkbookObject extends ZPEStructure {
+
+    private static final long serialVersionUID = 3341840321048823111L;
+
+    private static final int SAVE_BUFFER_SIZE = 1 << 16;
+
+    private transient Workbook workbook;
+    private transient XLSXCompactWorkbook compact;
+    private transient File sourceFile;
+    private transient XLSXStyleRegistry styles;
+    private transient FormulaEvaluator evaluator;
+    private boolean inferTypes = false;
+    private boolean inlineStrings = false;
+
+    // See XLSXLocking. The locks are only used while concurrent is set.
+    private volatile boolean concurrent = false;
+    private final transient ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final transient ReentrantReadWriteLock sharedLock = new ReentrantReadWriteLock();
+
+    // Sheet wrappers are cached so that repeated get_sheet calls reuse them
+    private final transient ArrayList<ZPEXLSXSheetObject> sheetsByIndex = new ArrayList<>();
+    private final transient HashMap<String, ZPEXLSXSheetObject> sheetsByName = new HashMap<>();
+
+    public ZPEXLSXWorkbookObject(ZPERuntimeEnvironment z, ZPEPropertyWrapper parent) {
+      super(z, parent, "ZPEXLSXWorkbook");
+
+      addNativeMethod("new_file", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new new_file_Command())));
+      addNativeMethod("open", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new open_Command())));
+      addNativeMethod("open_lazy", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new open_lazy_Command())));
+      addNativeMethod("save", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new save_Command())));
+      addNativeMethod("save_with_options", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new save_with_options_Command())));
+      addNativeMethod("close", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new close_Command())));
+      addNativeMethod("to_bytes", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new to_bytes_Command())));
+
+      addNativeMethod("add_sheet", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new add_sheet_Command())));
+      addNativeMethod("get_sheet", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.reading(new get_sheet_Command())));
+      addNativeMethod("get_sheet_count", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.reading(new get_sheet_count_Command())));
+      addNativeMethod("get_sheet_names", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.reading(new get_sheet_names_Command())));
+
+      addNativeMethod("set_infer_types", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new set_infer_types_Command())));
+      addNativeMethod("set_inline_strings", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new set_inline_strings_Command())));
+      addNativeMethod("set_concurrent", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new set_concurrent_Command())));
+      addNativeMethod("get_shared_strings_stats", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new get_shared_strings_stats_Command())));
+      addNativeMethod("stats", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new stats_Command())));
+      addNativeMethod("evaluate_all", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new evaluate_all_Command())));
+      addNativeMethod("write_sheets_parallel", XLSXMetrics.timed("ZPEXLSXWorkbook", XLSXLocking.writing(new write_sheets_parallel_Command())));
+    }
+
+    void newFile() {
+      closeQuietly();
+      workbook = new XSSFWorkbook();
+      workbook.createSheet("Sheet1");
+    }
+
+    /**
+     * Creates a write-only workbook backed by SXSSF. Only the last windowSize rows
+     * of each sheet stay in memory, the rest are flushed to compressed temp files.
+     * Strings are written inline as a shared strings table would have to be kept
+     * in memory in full.
+     */
+    void newStreamingFile(int windowSize) {
+      closeQuietly();
+      workbook = new TunableSXSSFWorkbook(windowSize, true, false);
+      workbook.createSheet("Sheet1");
+    }
+
+    /**
+     * Replaces the workbook with a streaming one holding one sheet per entry and
+     * fills the sheets on a bounded pool. Strings are written inline so the
+     * sheets share no mutable state. Each worker flushes its sheet's XML to a
+     * temp file, which is left uncompressed as save deflates everything again
+     * anyway. Only building the sheet XML runs in parallel: save still
+     * compresses the final zip on one thread.
+     *
+     * The names are checked before anything is replaced, but a row that cannot
+     * be written abandons the new workbook, leaving none open.
+     */
+    boolean writeSheetsParallel(Map<String, ZPEList> sheets, int threads) {
+      HashSet<String> names = new HashSet<>();
+      for (String name : sheets.keySet()) {
+        WorkbookUtil.validateSheetName(name);
+        if (!names.add(name.toLowerCase(Locale.ROOT))) throw new IllegalArgumentException("The sheet name '" + name + "' is used twice");
+      }
+
+      closeQuietly();
+      workbook = new TunableSXSSFWorkbook(SXSSFWorkbook.DEFAULT_WINDOW_SIZE, false, false);
+
+      ArrayList<Callable<Integer>> tasks = new ArrayList<>();
+      for (Map.Entry<String, ZPEList> entry : sheets.entrySet()) {
+        String name = entry.getKey();
+        ZPEXLSXSheetObject so = addSheet(name);
+        ZPEList rows = entry.getValue();
+        tasks.add(() -> {
+          int total = 0;
+          for (int i = 0; i < rows.size(); i++) {
+            ZPEType values = rows.get(i);
+            if (!(values instanceof ZPEList)) throw new IllegalArgumentException("Row " + i + " of sheet '" + name + "' is not a list");
+            int written = so.writeRow(i, 0, (ZPEList) values);
+            if (written < 0) throw new IllegalArgumentException("Row " + i + " of sheet '" + name + "' cannot be written");
+            total += written;
+          }
+          ((SXSSFSheet) so.sheet).flushRows();
+          return total;
+        });
+      }
+      if (tasks.isEmpty()) workbook.createSheet("Sheet1");
+
+      ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+      try {
+        for (Future<Integer> f : pool.invokeAll(tasks)) {
+          f.get();
+        }
+        return true;
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        closeQuietly();
+        return false;
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+
+    /**
+     * Creates a workbook whose sheets keep their values in primitive arrays, see
+     * XLSXCompactSheet. Nothing is built in POI until the workbook is saved.
+     */
+    void newCompactFile() {
+      closeQuietly();
+      compact = new XLSXCompactWorkbook();
+      compact.createSheet("Sheet1");
+    }
+
+    /**
+     * Reads the values of every sheet into a compact workbook. Formulas keep only
+     * their cached result and styles are dropped.
+     */
+    boolean openCompact(String path) {
+      closeQuietly();
+      try {
+        File file = new File(path);
+        long start = System.nanoTime();
+        compact = XLSXCompactWorkbook.read(file);
+        XLSXMetrics.recordRead(file.length(), System.nanoTime() - start);
+        return true;
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        compact = null;
+        return false;
+      }
+    }
+
+    boolean isStreaming() {
+      return workbook instanceof SXSSFWorkbook;
+    }
+
+    boolean isCompact() {
+      return compact != null;
+    }
+
+    XLSXCompactWorkbook getCompact() {
+      return compact;
+    }
+
+    /**
+     * True if a workbook of either kind is loaded.
+     */
+    boolean isOpen() {
+      return workbook != null || compact != null;
+    }
+
+    int getNumberOfSheets() {
+      return (compact != null) ? compact.getNumberOfSheets() : workbook.getNumberOfSheets();
+    }
+
+    String getSheetName(int index) {
+      return (compact != null) ? compact.getSheetAt(index).getName() : workbook.getSheetName(index);
+    }
+
+    /**
+     * Opens the package straight from the file so that POI reads zip entries on
+     * demand instead of buffering the whole archive from a stream. The file stays
+     * open until the workbook is closed.
+     */
+    boolean open(String path) {
+      return open(path, false);
+    }
+
+    /**
+     * A lazy open reads the workbook part but leaves every sheet unparsed until
+     * it is first fetched, see XLSXLazyWorkbook.
+     */
+    boolean open(String path, boolean lazy) {
+      closeQuietly();
+      try {
+        File file = new File(path);
+        long start = System.nanoTime();
+        OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ_WRITE);
+        try {
+          workbook = lazy ? new XLSXLazyWorkbook(pkg) : new XSSFWorkbook(pkg);
+        } catch (Exception e) {
+          // Otherwise the file stays open, and on Windows locked, until collected
+          pkg.revert();
+          throw e;
+        }
+        XLSXMetrics.recordRead(file.length(), System.nanoTime() - start);
+        sourceFile = file;
+        return true;
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        workbook = null;
+        return false;
+      }
+    }
+
+    boolean save(String path) {
+      return save(path, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Writes the workbook through a buffer into a temp file next to the target
+     * and then renames it into place, so a failed save never leaves a partial
+     * file behind. This also makes it safe to save over the file the workbook
+     * was opened from, as unloaded parts are still read from it while writing.
+     */
+    boolean save(String path, int compressionLevel) {
+      if (!isOpen()) return false;
+      File tmp = null;
+      try {
+        File target = new File(path).getAbsoluteFile();
+        tmp = File.createTempFile(".xlsx-", ".tmp", target.getParentFile());
+
+        long start = System.nanoTime();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), SAVE_BUFFER_SIZE)) {
+          write(out, compressionLevel);
+        }
+        XLSXMetrics.recordWrite(tmp.length(), System.nanoTime() - start);
+
+        try {
+          Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        return false;
+      } finally {
+        if (tmp != null) tmp.delete();
+      }
+    }
+
+    private void write(OutputStream out, int compressionLevel) throws IOException {
+      if (compact != null) {
+        compact.write(out, compressionLevel, inlineStrings);
+      } else if (workbook instanceof TunableSXSSFWorkbook) {
+        ((TunableSXSSFWorkbook) workbook).setCompressionLevel(compressionLevel);
+        workbook.write(out);
+      } else {
+        // ZipPackage writes into the archive stream it is given as is
+        ZipArchiveOutputStream zos = new ZipArchiveOutputStream(out);
+        zos.setLevel(compressionLevel);
+        workbook.write(zos);
+      }
+    }
+
+    /**
+     * Serialises the workbook into a buffer that is kept per thread and reused
+     * between calls, and returns it Base64 encoded.
+     */
+    String toBase64() throws IOException {
+      if (!isOpen()) return null;
+
+      PooledByteArrayOutputStream buffer = PooledByteArrayOutputStream.acquire();
+      try {
+        long start = System.nanoTime();
+        write(buffer, Deflater.DEFAULT_COMPRESSION);
+        XLSXMetrics.recordWrite(buffer.size(), System.nanoTime() - start);
+        return buffer.toBase64();
+      } finally {
+        buffer.release();
+      }
+    }
+
+    boolean openBytes(byte[] data) {
+      closeQuietly();
+      try {
+        long start = System.nanoTime();
+        workbook = new XSSFWorkbook(new ByteArrayInputStream(data));
+        XLSXMetrics.recordRead(data.length, System.nanoTime() - start);
+        return true;
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        workbook = null;
+        return false;
+      }
+    }
+
+    /**
+     * Opens a copy of a template held by XLSXTemplateCache. Copies share nothing
+     * with each other and never hold the template file open.
+     */
+    boolean openTemplate(String path) {
+      closeQuietly();
+      try {
+        long start = System.nanoTime();
+        File file = new File(path);
+        workbook = XLSXTemplateCache.getInstance().open(file);
+        XLSXMetrics.recordRead(file.length(), System.nanoTime() - start);
+        return true;
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        workbook = null;
+        return false;
+      }
+    }
+
+    boolean close() {
+      return closeQuietly();
+    }
+
+    private boolean closeQuietly() {
+      sheetsByIndex.clear();
+      sheetsByName.clear();
+      styles = null;
+      evaluator = null;
+      compact = null;
+      try {
+        if (workbook instanceof XSSFWorkbook && sourceFile != null) {
+          // Closing a file-backed package would write the changes back to the
+          // source file, so it is discarded instead
+          ((XSSFWorkbook) workbook).getPackage().revert();
+        } else if (workbook != null) {
+          // For SXSSF this also removes the temp files holding the flushed rows
+          workbook.close();
+        }
+        workbook = null;
+        sourceFile = null;
+        return true;
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        workbook = null;
+        sourceFile = null;
+        return false;
+      }
+    }
+
+    Workbook getWorkbook() {
+      return workbook;
+    }
+
+    /**
+     * Returns the cached wrapper for the sheet at the index, creating it on first
+     * use. Returns null if there is no such sheet.
+     */
+    ZPEXLSXSheetObject getSheetObject(int index) {
+      if (!isOpen() || index < 0 || index >= getNumberOfSheets()) return null;
+
+      // get_sheet only holds the workbook lock for reading, and fetching a sheet
+      // fills the caches and may parse a lazily opened sheet
+      synchronized (sheetsByIndex) {
+        ZPEXLSXSheetObject so = (index < sheetsByIndex.size()) ? sheetsByIndex.get(index) : null;
+        if (so == null) {
+          so = (compact != null)
+              ? new ZPEXLSXSheetObject(getRuntime(), this, this, compact.getSheetAt(index))
+              : new ZPEXLSXSheetObject(getRuntime(), this, this, workbook.getSheetAt(index));
+          cacheSheetObject(index, so);
+        }
+        return so;
+      }
+    }
+
+    ZPEXLSXSheetObject getSheetObject(String name) {
+      if (!isOpen()) return null;
+
+      synchronized (sheetsByIndex) {
+        ZPEXLSXSheetObject so = sheetsByName.get(name);
+        if (so == null) {
+          int index;
+          if (compact != null) {
+            index = compact.getSheetIndex(name);
+          } else {
+            Sheet sheet = workbook.getSheet(name);
+            index = (sheet == null) ? -1 : workbook.getSheetIndex(sheet);
+          }
+          if (index < 0) return null;
+          so = getSheetObject(index);
+          sheetsByName.put(name, so);
+        }
+        return so;
+      }
+    }
+
+    private void cacheSheetObject(int index, ZPEXLSXSheetObject so) {
+      while (sheetsByIndex.size() <= index) sheetsByIndex.add(null);
+      sheetsByIndex.set(index, so);
+    }
+
+    ZPEXLSXSheetObject addSheet(String name) {
+      if (compact != null) {
+        ZPEXLSXSheetObject so = new ZPEXLSXSheetObject(getRuntime(), this, this, compact.createSheet(name));
+        cacheSheetObject(compact.getNumberOfSheets() - 1, so);
+        return so;
+      }
+
+      Sheet sheet = workbook.createSheet(name);
+      ZPEXLSXSheetObject so = new ZPEXLSXSheetObject(getRuntime(), this, this, sheet);
+      cacheSheetObject(workbook.getSheetIndex(sheet), so);
+      return so;
+    }
+
+    XLSXStyleRegistry getStyles() {
+      if (styles == null) styles = new XLSXStyleRegistry(workbook);
+      return styles;
+    }
+
+    /**
+     * Streaming workbooks always write strings inline.
+     */
+    boolean isInlineStrings() {
+      return inlineStrings || isStreaming();
+    }
+
+    boolean setInlineStrings(boolean inlineStrings) {
+      if (!inlineStrings && isStreaming()) return false;
+      this.inlineStrings = inlineStrings;
+      return true;
+    }
+
+    /**
+     * Total and unique string counts of the shared strings table.
+     */
+    int[] getSharedStringsCounts() {
+      if (compact != null) return new int[]{compact.getStringCellCount(), compact.getUniqueStringCount()};
+      if (workbook == null) return null;
+      XSSFWorkbook x = (workbook instanceof SXSSFWorkbook) ? ((SXSSFWorkbook) workbook).getXSSFWorkbook() : (XSSFWorkbook) workbook;
+      SharedStringsTable sst = x.getSharedStringSource();
+      return new int[]{sst.getCount(), sst.getUniqueCount()};
+    }
+
+    int getInternedStyleCount() {
+      return (styles == null) ? 0 : styles.size();
+    }
+
+    /**
+     * The evaluator is created on first use and kept for the life of the
+     * workbook, so computed results stay cached between calls.
+     */
+    FormulaEvaluator getEvaluator() {
+      if (evaluator == null) evaluator = workbook.getCreationHelper().createFormulaEvaluator();
+      return evaluator;
+    }
+
+    FormulaEvaluator getCreatedEvaluator() {
+      return evaluator;
+    }
+
+    /**
+     * Clears the cached results of only the formulas that depend on the cell.
+     */
+    void notifyCellChanged(Cell c) {
+      if (evaluator == null) return;
+
+      Lock shared = getSharedWriteLock();
+      if (shared != null) shared.lock();
+      try {
+        evaluator.notifyUpdateCell(c);
+      } finally {
+        if (shared != null) shared.unlock();
+      }
+    }
+
+    boolean isConcurrent() {
+      return concurrent;
+    }
+
+    void setConcurrent(boolean concurrent) {
+      this.concurrent = concurrent;
+    }
+
+    ReentrantReadWriteLock getLock() {
+      return lock;
+    }
+
+    ReentrantReadWriteLock getSharedLock() {
+      return sharedLock;
+    }
+
+    /**
+     * The lock sheet writers take around updates to the string table, styles
+     * and evaluator cache, or null when not in concurrent mode.
+     */
+    Lock getSharedWriteLock() {
+      return concurrent ? sharedLock.writeLock() : null;
+    }
+
+    boolean isInferTypes() {
+      return inferTypes;
+    }
+
+    void setInferTypes(boolean inferTypes) {
+      this.inferTypes = inferTypes;
+    }
+
+    // ----------------------------
+    // Native methods
+    // ----------------------------
+
+    static final class new_file_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ((ZPEXLSXWorkbookObject) parent).newFile();
+        return parent;
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "new_file";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.OBJECT};
+      }
+    }
+
+    static final class open_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"path"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"string"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          String path = parameters.get("path").toString();
+          return new ZPEBoolean(((ZPEXLSXWorkbookObject) parent).open(path));
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 3;
+      }
+
+      @Override
+      public String getName() {
+        return "open";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class open_lazy_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"path"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"string"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          String path = parameters.get("path").toString();
+          return new ZPEBoolean(((ZPEXLSXWorkbookObject) parent).open(path, true));
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 3;
+      }
+
+      @Override
+      public String getName() {
+        return "open_lazy";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class save_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"path"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"string"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          String path = parameters.get("path").toString();
+          return new ZPEBoolean(((ZPEXLSXWorkbookObject) parent).save(path));
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 3;
+      }
+
+      @Override
+      public String getName() {
+        return "save";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class save_with_options_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"path", "options"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"string", "map"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          String path = parameters.get("path").toString();
+
+          int level = Deflater.DEFAULT_COMPRESSION;
+          ZPEType options = parameters.get("options");
+          if (options instanceof ZPEMap) {
+            ZPEType v = ((ZPEMap) options).get(new ZPEString("compression_level"));
+            if (v != null) level = asInt(v);
+          }
+          if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) return new ZPEBoolean(false);
+
+          return new ZPEBoolean(((ZPEXLSXWorkbookObject) parent).save(path, level));
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 3;
+      }
+
+      @Override
+      public String getName() {
+        return "save_with_options";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class close_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        return new ZPEBoolean(((ZPEXLSXWorkbookObject) parent).close());
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "close";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class to_bytes_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          String data = ((ZPEXLSXWorkbookObject) parent).toBase64();
+          if (data == null) return new ZPEBoolean(false);
+          return new ZPEString(data);
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "to_bytes";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.STRING_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class add_sheet_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"name"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"string"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          ZPEXLSXWorkbookObject wb = (ZPEXLSXWorkbookObject) parent;
+          if (!wb.isOpen()) return new ZPEBoolean(false);
+
+          String name = parameters.get("name").toString();
+          if (name.trim().isEmpty()) name = "Sheet" + (wb.getNumberOfSheets() + 1);
+
+          return wb.addSheet(name);
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "add_sheet";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.OBJECT, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class get_sheet_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"name_or_index"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"mixed"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          ZPEXLSXWorkbookObject wb = (ZPEXLSXWorkbookObject) parent;
+          if (!wb.isOpen()) return new ZPEBoolean(false);
+
+          ZPEType v = parameters.get("name_or_index");
+          if (v == null) return new ZPEBoolean(false);
+
+          ZPEXLSXSheetObject sheet;
+
+          if (v instanceof ZPENumber) {
+            sheet = wb.getSheetObject(((ZPENumber) v).intValue());
+          } else {
+            String s = v.toString();
+            Integer idx = null;
+            try {
+              idx = HelperFunctions.stringToInteger(s);
+            } catch (Exception ignored) {
+            }
+
+            sheet = (idx != null) ? wb.getSheetObject(idx) : wb.getSheetObject(s);
+          }
+
+          if (sheet == null) return new ZPEBoolean(false);
+          return sheet;
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "get_sheet";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.OBJECT, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class get_sheet_count_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          ZPEXLSXWorkbookObject wb = (ZPEXLSXWorkbookObject) parent;
+          if (!wb.isOpen()) return new ZPEBoolean(false);
+          return new ZPENumber(wb.getNumberOfSheets());
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "get_sheet_count";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    /**
+     * Names come from the workbook part, so no sheet of a lazily opened
+     * workbook is loaded.
+     */
+    static final class get_sheet_names_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          ZPEXLSXWorkbookObject wb = (ZPEXLSXWorkbookObject) parent;
+          if (!wb.isOpen()) return new ZPEBoolean(false);
+
+          ZPEList names = new ZPEList();
+          for (int i = 0; i < wb.getNumberOfSheets(); i++) {
+            names.add(new ZPEString(wb.getSheetName(i)));
+          }
+          return names;
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "get_sheet_names";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.LIST_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class set_infer_types_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"value"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"boolean"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          boolean value = "true".equalsIgnoreCase(parameters.get("value").toString());
+          ((ZPEXLSXWorkbookObject) parent).setInferTypes(value);
+          return new ZPEBoolean(true);
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "set_infer_types";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class set_inline_strings_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"value"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"boolean"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          boolean value = "true".equalsIgnoreCase(parameters.get("value").toString());
+          return new ZPEBoolean(((ZPEXLSXWorkbookObject) parent).setInlineStrings(value));
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "set_inline_strings";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    /**
+     * Switches the workbook to concurrent mode, see XLSXLocking. It should be
+     * switched on before the workbook is shared with other threads.
+     */
+    static final class set_concurrent_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"value"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"boolean"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          boolean value = "true".equalsIgnoreCase(parameters.get("value").toString());
+          ((ZPEXLSXWorkbookObject) parent).setConcurrent(value);
+          return new ZPEBoolean(true);
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "set_concurrent";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class get_shared_strings_stats_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          ZPEXLSXWorkbookObject wb = (ZPEXLSXWorkbookObject) parent;
+          int[] counts = wb.getSharedStringsCounts();
+          if (counts == null) return new ZPEBoolean(false);
+
+          ZPEMap stats = new ZPEMap();
+          stats.put(new ZPEString("count"), new ZPENumber(counts[0]));
+          stats.put(new ZPEString("unique_count"), new ZPENumber(counts[1]));
+          stats.put(new ZPEString("inline_strings"), new ZPEBoolean(wb.isInlineStrings()));
+          return stats;
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "get_shared_strings_stats";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.ASSOCIATIVE_ARRAY_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class stats_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          ZPEXLSXWorkbookObject wb = (ZPEXLSXWorkbookObject) parent;
+          if (wb.isCompact()) return compactStats(wb);
+
+          Workbook w = wb.getWorkbook();
+          if (w == null) return new ZPEBoolean(false);
+
+          int[] counts = wb.getSharedStringsCounts();
+          ZPEMap stats = new ZPEMap();
+          stats.put(new ZPEString("sheets"), new ZPENumber(w.getNumberOfSheets()));
+          stats.put(new ZPEString("loaded_sheets"), new ZPENumber((w instanceof XLSXLazyWorkbook) ? ((XLSXLazyWorkbook) w).getLoadedSheetCount() : w.getNumberOfSheets()));
+          stats.put(new ZPEString("cell_styles"), new ZPENumber(w.getNumCellStyles()));
+          stats.put(new ZPEString("interned_styles"), new ZPENumber(wb.getInternedStyleCount()));
+          stats.put(new ZPEString("shared_strings"), new ZPENumber(counts[0]));
+          stats.put(new ZPEString("unique_shared_strings"), new ZPENumber(counts[1]));
+          stats.put(new ZPEString("streaming"), new ZPEBoolean(wb.isStreaming()));
+          stats.put(new ZPEString("compact"), new ZPEBoolean(false));
+          stats.put(new ZPEString("concurrent"), new ZPEBoolean(wb.isConcurrent()));
+          stats.put(new ZPEString("inline_strings"), new ZPEBoolean(wb.isInlineStrings()));
+          return stats;
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      /**
+       * Compact workbooks have no styles or shared strings table until saved, so
+       * they report their cell count and the size of the cell arrays instead.
+       */
+      private static ZPEMap compactStats(ZPEXLSXWorkbookObject wb) {
+        XLSXCompactWorkbook c = wb.getCompact();
+        long cells = 0;
+        long cellBytes = 0;
+        for (XLSXCompactSheet s : c.getSheets()) {
+          cells += s.getCellCount();
+          cellBytes += s.getCellBytes();
+        }
+
+        ZPEMap stats = new ZPEMap();
+        stats.put(new ZPEString("sheets"), new ZPENumber(c.getNumberOfSheets()));
+        stats.put(new ZPEString("loaded_sheets"), new ZPENumber(c.getNumberOfSheets()));
+        stats.put(new ZPEString("cells"), new ZPENumber(cells));
+        stats.put(new ZPEString("cell_bytes"), new ZPENumber(cellBytes));
+        stats.put(new ZPEString("shared_strings"), new ZPENumber(c.getStringCellCount()));
+        stats.put(new ZPEString("unique_shared_strings"), new ZPENumber(c.getUniqueStringCount()));
+        stats.put(new ZPEString("streaming"), new ZPEBoolean(false));
+        stats.put(new ZPEString("compact"), new ZPEBoolean(true));
+        stats.put(new ZPEString("concurrent"), new ZPEBoolean(wb.isConcurrent()));
+        stats.put(new ZPEString("inline_strings"), new ZPEBoolean(wb.isInlineStrings()));
+        return stats;
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "stats";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.ASSOCIATIVE_ARRAY_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class evaluate_all_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          ZPEXLSXWorkbookObject wb = (ZPEXLSXWorkbookObject) parent;
+          // Compact sheets hold no formulas
+          if (wb.isCompact()) return new ZPEBoolean(true);
+          if (wb.getWorkbook() == null) return new ZPEBoolean(false);
+
+          wb.getEvaluator().evaluateAll();
+          return new ZPEBoolean(true);
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "evaluate_all";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class write_sheets_parallel_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"sheets", "threads"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"map", "number"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        try {
+          ZPEType v = parameters.get("sheets");
+          if (!(v instanceof ZPEMap)) return new ZPEBoolean(false);
+
+          ZPEMap map = (ZPEMap) v;
+          LinkedHashMap<String, ZPEList> sheets = new LinkedHashMap<>();
+          for (ZPEType key : map.keySet()) {
+            ZPEType rows = map.get(key);
+            if (!(rows instanceof ZPEList)) return new ZPEBoolean(false);
+            sheets.put(key.toString(), (ZPEList) rows);
+          }
+
+          int threads = asInt(parameters.get("threads"));
+          if (threads < 1) threads = Runtime.getRuntime().availableProcessors();
+
+          ZPEXLSXWorkbookObject wb = (ZPEXLSXWorkbookObject) parent;
+          return wb.writeSheetsParallel(sheets, threads) ? wb : new ZPEBoolean(false);
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "write_sheets_parallel";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.OBJECT, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+  }
+
+  // =============================================================================
+  // ZPEXLSXSheetObject
+  // =============================================================================
+  public static final class ZPEXLSXSheetObject extends ZPEStructure {
+
+    private static final long serialVersionUID = 7412849723950412345L;
+
+    private static final int MAX_ROW = SpreadsheetVersion.EXCEL2007.getLastRowIndex();
+    private static final int MAX_COLUMN = SpreadsheetVersion.EXCEL2007.getLastColumnIndex();
+    private static final int MAX_TEXT_LENGTH = SpreadsheetVersion.EXCEL2007.getMaxTextLength();
+
+    private final ZPEXLSXWorkbookObject workbookObj;
+
+    // Exactly one of these is set, depending on the kind of workbook
+    private final transient Sheet sheet;
+    private final transient XLSXCompactSheet compact;
+
+    // Only used while the workbook is in concurrent mode, see XLSXLocking
+    private final transient ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Column index -> cell value -> sorted row numbers, for columns passed to build_index
+    private final transient HashMap<Integer, HashMap<Object, ArrayList<Integer>>> indexes = new HashMap<>();
+
+    /**
+     * The commands are stateless and work on the sheet passed to them as parent,
+     * so every sheet wrapper shares the same instances.
+     */
+    private static final ZPEObjectNativeMethod[] COMMANDS = XLSXMetrics.timed("ZPEXLSXSheet",
+        XLSXLocking.writing(new set_cell_Command()),
+        XLSXLocking.reading(new get_cell_Command()),
+        XLSXLocking.exclusive(new get_value_Command()),
+        XLSXLocking.reading(new get_last_row_Command()),
+        XLSXLocking.reading(new get_name_Command()),
+
+        XLSXLocking.writing(new set_row_Command()),
+        XLSXLocking.writing(new append_row_Command()),
+        XLSXLocking.writing(new set_range_Command()),
+
+        XLSXLocking.reading(new get_row_Command()),
+        XLSXLocking.reading(new get_range_Command()),
+        XLSXLocking.reading(new to_list_Command()),
+
+        XLSXLocking.reading(new get_column_Command()),
+        XLSXLocking.reading(new get_number_column_Command()),
+        XLSXLocking.reading(new column_aggregate_Command("sum_column")),
+        XLSXLocking.reading(new column_aggregate_Command("min_column")),
+        XLSXLocking.reading(new column_aggregate_Command("max_column")),
+        XLSXLocking.reading(new column_aggregate_Command("count_column")),
+
+        XLSXLocking.writing(new set_style_Command()),
+        XLSXLocking.writing(new set_range_style_Command()),
+
+        XLSXLocking.writing(new build_index_Command()),
+        XLSXLocking.reading(new find_row_Command()),
+        XLSXLocking.reading(new find_rows_Command()),
+        XLSXLocking.reading(new lookup_Command())
+    );
+
+    public ZPEXLSXSheetObject(ZPERuntimeEnvironment z, ZPEPropertyWrapper parent, ZPEXLSXWorkbookObject workbookObj, Sheet sheet) {
+      this(z, parent, workbookObj, sheet, null);
+    }
+
+    ZPEXLSXSheetObject(ZPERuntimeEnvironment z, ZPEPropertyWrapper parent, ZPEXLSXWorkbookObject workbookObj, XLSXCompactSheet compact) {
+      this(z, parent, workbookObj, null, compact);
+    }
+
+    private ZPEXLSXSheetObject(ZPERuntimeEnvironment z, ZPEPropertyWrapper parent, ZPEXLSXWorkbookObject workbookObj, Sheet sheet, XLSXCompactSheet compact) {
+      super(z, parent, "ZPEXLSXSheet");
+      this.workbookObj = workbookObj;
+      this.sheet = sheet;
+      this.compact = compact;
+
+      for (ZPEObjectNativeMethod m : COMMANDS) {
+        addNativeMethod(m.getName(), m);
+      }
+    }
+
+    /**
+     * In streaming mode rows up to the flush point have already been written
+     * to disk and cannot be touched any more.
+     */
+    private boolean isFlushed(int rowIndex) {
+      return sheet instanceof SXSSFSheet && rowIndex <= ((SXSSFSheet) sheet).getLastFlushedRowNum();
+    }
+
+    /**
+     * Last row number of the sheet or -1 if it is empty. SXSSF only reports rows
+     * still in memory, so flushed rows are taken into account as well.
+     */
+    private int lastRowNum() {
+      if (compact != null) return compact.getLastRow();
+
+      int last = sheet.getLastRowNum();
+      if (sheet instanceof SXSSFSheet) {
+        last = Math.max(last, ((SXSSFSheet) sheet).getLastFlushedRowNum());
+      }
+      return last;
+    }
+
+    private Row ensureRow(int rowIndex) {
+      Row r = sheet.getRow(rowIndex);
+      if (r == null) r = sheet.createRow(rowIndex);
+      return r;
+    }
+
+    private Cell ensureCell(Row r, int colIndex) {
+      Cell c = r.getCell(colIndex);
+      if (c == null) c = r.createCell(colIndex);
+      return c;
+    }
+
+    String getSheetName() {
+      return (compact != null) ? compact.getName() : sheet.getSheetName();
+    }
+
+    ZPEXLSXWorkbookObject getWorkbookObject() {
+      return workbookObj;
+    }
+
+    ReentrantReadWriteLock getLock() {
+      return lock;
+    }
+
+    /**
+     * Reads one cell, giving an empty string for a missing row or cell.
+     */
+    private ZPEType readCell(int row, int col) {
+      if (compact != null) return readValue(compact, row, col);
+
+      Row r = sheet.getRow(row);
+      return readValue(r == null ? null : r.getCell(col));
+    }
+
+    /**
+     * Reads a row as readRow(Row, int, int) does.
+     */
+    private ZPEList readRow(int row, int fromCol, int toCol) {
+      if (compact == null) return readRow(sheet.getRow(row), fromCol, toCol);
+
+      int last = (toCol >= 0) ? toCol : compact.getLastColumn(row);
+      ZPEList list = new ZPEList();
+      for (int col = fromCol; col <= last; col++) {
+        list.add(readValue(compact, row, col));
+      }
+      return list;
+    }
+
+    /**
+     * Writes a value to a cell of a compact sheet, keeping the lookup index of
+     * the column up to date.
+     */
+    private void setValue(int row, int col, ZPEType value) {
+      HashMap<Object, ArrayList<Integer>> index = indexes.isEmpty() ? null : indexes.get(col);
+      if (index == null) {
+        writeValue(row, col, value);
+        return;
+      }
+
+      Lock shared = workbookObj.getSharedWriteLock();
+      if (shared != null) shared.lock();
+      try {
+        removeFromIndex(index, indexKey(row, col), row);
+        writeValue(row, col, value);
+        addToIndex(index, indexKey(row, col), row);
+      } finally {
+        if (shared != null) shared.unlock();
+      }
+    }
+
+    /**
+     * Writes the value and keeps the lookup index of the column up to date.
+     */
+    private void setValue(Cell c, ZPEType value) {
+      HashMap<Object, ArrayList<Integer>> index = indexes.isEmpty() ? null : indexes.get(c.getColumnIndex());
+      if (index == null) {
+        writeValue(c, value);
+        return;
+      }
+
+      // Index keys of text cells are read from the shared strings table
+      Lock shared = workbookObj.getSharedWriteLock();
+      if (shared != null) shared.lock();
+      try {
+        int row = c.getRowIndex();
+        removeFromIndex(index, indexKey(c), row);
+        writeValue(c, value);
+        addToIndex(index, indexKey(c), row);
+      } finally {
+        if (shared != null) shared.unlock();
+      }
+    }
+
+    /**
+     * Builds a hash index from the values in the column to the rows holding them,
+     * replacing any earlier index of the column. Returns the number of distinct
+     * values. Streaming sheets cannot be indexed, as rows they flush can no
+     * longer be read.
+     */
+    int buildIndex(int col) {
+      HashMap<Object, ArrayList<Integer>> index = new HashMap<>();
+      Lock shared = workbookObj.isConcurrent() ? workbookObj.getSharedLock().readLock() : null;
+      if (shared != null) shared.lock();
+      try {
+        buildIndex(col, index);
+      } finally {
+        if (shared != null) shared.unlock();
+      }
+      indexes.put(col, index);
+      return index.size();
+    }
+
+    private void buildIndex(int col, HashMap<Object, ArrayList<Integer>> index) {
+      // Rows come in ascending order, so each row list is built sorted
+      if (compact != null) {
+        for (int row = 0; row <= compact.getLastRow(); row++) {
+          Object key = indexKey(row, col);
+          if (key != null) index.computeIfAbsent(key, k -> new ArrayList<>(1)).add(row);
+        }
+      } else {
+        Iterator<Row> it = sheet.rowIterator();
+        while (it.hasNext()) {
+          Row r = it.next();
+          Object key = indexKey(r.getCell(col));
+          if (key != null) index.computeIfAbsent(key, k -> new ArrayList<>(1)).add(r.getRowNum());
+        }
+      }
+    }
+
+    /**
+     * Rows whose cell in the indexed column equals the value, in ascending order.
+     * Returns null if the column has no index.
+     */
+    List<Integer> findRows(int col, ZPEType value) {
+      HashMap<Object, ArrayList<Integer>> index = indexes.get(col);
+      if (index == null) return null;
+      ArrayList<Integer> rows = index.get(indexKey(value));
+      return (rows == null) ? Collections.emptyList() : rows;
+    }
+
+    private static void addToIndex(HashMap<Object, ArrayList<Integer>> index, Object key, int row) {
+      if (key == null) return;
+      ArrayList<Integer> rows = index.computeIfAbsent(key, k -> new ArrayList<>(1));
+      int pos = Collections.binarySearch(rows, row);
+      if (pos < 0) rows.add(-pos - 1, row);
+    }
+
+    private static void removeFromIndex(HashMap<Object, ArrayList<Integer>> index, Object key, int row) {
+      if (key == null) return;
+      ArrayList<Integer> rows = index.get(key);
+      if (rows == null) return;
+      int pos = Collections.binarySearch(rows, row);
+      if (pos >= 0) rows.remove(pos);
+      if (rows.isEmpty()) index.remove(key);
+    }
+
+    /**
+     * Index keys are Strings, Doubles or Booleans so that a number never matches
+     * its text form. Empty cells are not indexed, and neither are formula cells,
+     * as evaluate_all and get_value change their cached results without going
+     * through setValue.
+     */
+    private static Object indexKey(Cell c) {
+      if (c == null) return null;
+      switch (c.getCellType()) {
+        case STRING:
+          return c.getStringCellValue();
+        case NUMERIC:
+          return numberKey(c.getNumericCellValue());
+        case BOOLEAN:
+          return c.getBooleanCellValue();
+        default:
+          return null;
+      }
+    }
+
+    private Object indexKey(int row, int col) {
+      switch (compact.getType(row, col)) {
+        case XLSXCompactSheet.STRING:
+          return compact.getString(row, col);
+        case XLSXCompactSheet.NUMBER:
+          return numberKey(compact.getNumber(row, col));
+        case XLSXCompactSheet.BOOLEAN:
+          return compact.getBoolean(row, col);
+        default:
+          return null;
+      }
+    }
+
+    private static Object indexKey(ZPEType v) {
+      if (v instanceof ZPENumber) return numberKey(((ZPENumber) v).doubleValue());
+      if (v instanceof ZPEBoolean) return "true".equals(v.toString());
+      return (v == null) ? "" : v.toString();
+    }
+
+    private static Double numberKey(double d) {
+      // -0.0 and 0.0 are different Doubles
+      return (d == 0) ? 0.0 : d;
+    }
+
+    /**
+     * Writes the value according to its ZPE type. Strings are stored as text
+     * unless the workbook has type inference switched on, in which case strings
+     * that look like booleans or numbers are converted as before.
+     */
+    private void writeValue(Cell c, ZPEType value) {
+      if (value instanceof ZPENumber) {
+        c.setCellValue(((ZPENumber) value).doubleValue());
+        return;
+      }
+
+      String vs = (value == null) ? "" : value.toString();
+
+      if (value instanceof ZPEBoolean) {
+        c.setCellValue("true".equals(vs));
+        return;
+      }
+
+      if (workbookObj.isInferTypes()) {
+        // Boolean?
+        if ("true".equalsIgnoreCase(vs) || "false".equalsIgnoreCase(vs)) {
+          c.setCellValue(Boolean.parseBoolean(vs));
+          return;
+        }
+
+        // Number?
+        String trimmed = vs.trim();
+        if (isNumeric(trimmed)) {
+          c.setCellValue(Double.parseDouble(trimmed));
+          return;
+        }
+      }
+
+      // Default string
+      if (c instanceof XSSFCell && workbookObj.isInlineStrings()) {
+        setInlineString((XSSFCell) c, vs);
+        return;
+      }
+
+      // The shared strings table is shared by every sheet of the workbook
+      Lock shared = workbookObj.getSharedWriteLock();
+      if (shared != null) shared.lock();
+      try {
+        c.setCellValue(vs);
+      } finally {
+        if (shared != null) shared.unlock();
+      }
+    }
+
+    /**
+     * The compact sheet counterpart of writeValue(Cell, ZPEType), converting
+     * values in the same way.
+     */
+    private void writeValue(int row, int col, ZPEType value) {
+      if (value instanceof ZPENumber) {
+        compact.setNumber(row, col, ((ZPENumber) value).doubleValue());
+        return;
+      }
+
+      String vs = (value == null) ? "" : value.toString();
+
+      if (value instanceof ZPEBoolean) {
+        compact.setBoolean(row, col, "true".equals(vs));
+        return;
+      }
+
+      if (workbookObj.isInferTypes()) {
+        if ("true".equalsIgnoreCase(vs) || "false".equalsIgnoreCase(vs)) {
+          compact.setBoolean(row, col, Boolean.parseBoolean(vs));
+          return;
+        }
+
+        String trimmed = vs.trim();
+        if (isNumeric(trimmed)) {
+          compact.setNumber(row, col, Double.parseDouble(trimmed));
+          return;
+        }
+      }
+
+      // The string table is shared by every sheet of the workbook
+      Lock shared = workbookObj.getSharedWriteLock();
+      if (shared != null) shared.lock();
+      try {
+        compact.setString(row, col, vs);
+      } finally {
+        if (shared != null) shared.unlock();
+      }
+    }
+
+    /**
+     * XSSF has no API for inline strings, so the cell XML is set directly. This
+     * keeps the value out of the shared strings table. XSSFRichTextString marks
+     * values with leading or trailing whitespace with xml:space="preserve", which
+     * Excel needs to keep it.
+     */
+    private static void setInlineString(XSSFCell c, String value) {
+      CTCell ct = c.getCTCell();
+      if (ct.isSetF()) ct.unsetF();
+      if (ct.isSetV()) ct.unsetV();
+
+      ct.setIs(new XSSFRichTextString(value).getCTRst());
+      ct.setT(STCellType.INLINE_STR);
+    }
+
+    /**
+     * Checks for a plain decimal number with an optional sign, fraction and
+     * exponent without going through an exception.
+     */
+    static boolean isNumeric(String s) {
+      int n = s.length();
+      int i = 0;
+      if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) i++;
+
+      int digits = 0;
+      while (i < n && isAsciiDigit(s.charAt(i))) {
+        i++;
+        digits++;
+      }
+      if (i < n && s.charAt(i) == '.') {
+        i++;
+        while (i < n && isAsciiDigit(s.charAt(i))) {
+          i++;
+          digits++;
+        }
+      }
+      if (digits == 0) return false;
+
+      if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+        i++;
+        if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) i++;
+        int expDigits = 0;
+        while (i < n && isAsciiDigit(s.charAt(i))) {
+          i++;
+          expDigits++;
+        }
+        if (expDigits == 0) return false;
+      }
+      return i == n;
+    }
+
+    /**
+     * Double.parseDouble only accepts ASCII digits, unlike Character.isDigit.
+     */
+    private static boolean isAsciiDigit(char c) {
+      return c >= '0' && c <= '9';
+    }
+
+    private static ZPEType readValue(Cell c) {
+      if (c == null) return new ZPEString("");
+
+      CellType ct = c.getCellType();
+      if (ct == CellType.FORMULA) {
+        // Keep your old behaviour: return the formula string
+        return new ZPEString(c.getCellFormula());
+      }
+
+      switch (ct) {
+        case STRING:
+          return new ZPEString(c.getStringCellValue());
+        case BOOLEAN:
+          return new ZPEBoolean(c.getBooleanCellValue());
+        case NUMERIC:
+          return new ZPENumber(c.getNumericCellValue());
+        case BLANK:
+        default:
+          return new ZPEString("");
+      }
+    }
+
+    private static ZPEType readValue(XLSXCompactSheet s, int row, int col) {
+      switch (s.getType(row, col)) {
+        case XLSXCompactSheet.STRING:
+          return new ZPEString(s.getString(row, col));
+        case XLSXCompactSheet.BOOLEAN:
+          return new ZPEBoolean(s.getBoolean(row, col));
+        case XLSXCompactSheet.NUMBER:
+          return new ZPENumber(s.getNumber(row, col));
+        case XLSXCompactSheet.BLANK:
+        default:
+          return new ZPEString("");
+      }
+    }
+
+    /**
+     * Reads columns fromCol to toCol of a row by walking its cells once in order.
+     * Gaps are filled with empty strings. A toCol of -1 reads up to the last cell
+     * of the row, otherwise the list is padded to the full width.
+     */
+    private static ZPEList readRow(Row r, int fromCol, int toCol) {
+      ZPEList list = new ZPEList();
+      int next = fromCol;
+
+      if (r != null) {
+        Iterator<Cell> it = r.cellIterator();
+        while (it.hasNext()) {
+          Cell c = it.next();
+          int col = c.getColumnIndex();
+          if (col < fromCol) continue;
+          if (toCol >= 0 && col > toCol) break;
+
+          while (next < col) {
+            list.add(new ZPEString(""));
+            next++;
+          }
+          list.add(readValue(c));
+          next++;
+        }
+      }
+
+      while (toCol >= 0 && next <= toCol) {
+        list.add(new ZPEString(""));
+        next++;
+      }
+      return list;
+    }
+
+    /**
+     * Passes every numeric value in the column between fromRow and toRow to the
+     * consumer in one pass over the rows, without creating an object per cell.
+     * Formula cells contribute their cached numeric result. A toRow of -1 means
+     * the last row. Rows a streaming sheet has already flushed are not seen, so
+     * callers reject ranges starting at one with isFlushed.
+     */
+    private void forEachNumber(int col, int fromRow, int toRow, DoubleConsumer consumer) {
+      if (compact != null) {
+        compact.forEachNumber(col, fromRow, toRow, consumer);
+        return;
+      }
+
+      Iterator<Row> it = sheet.rowIterator();
+      while (it.hasNext()) {
+        Row r = it.next();
+        int rowNum = r.getRowNum();
+        if (rowNum < fromRow) continue;
+        if (toRow >= 0 && rowNum > toRow) break;
+
+        Cell c = r.getCell(col);
+        if (c == null) continue;
+
+        CellType ct = c.getCellType();
+        if (ct == CellType.FORMULA) ct = c.getCachedFormulaResultType();
+        if (ct == CellType.NUMERIC) consumer.accept(c.getNumericCellValue());
+      }
+    }
+
+    /**
+     * Reads rows fromRow to toRow of a column by walking the rows once in order,
+     * as forEachNumber does. Missing rows are filled with empty strings. As with
+     * forEachNumber, callers reject ranges starting at a flushed row.
+     */
+    private ZPEList readColumn(int col, int fromRow, int toRow) {
+      ZPEList list = new ZPEList();
+      int next = fromRow;
+
+      if (compact != null) {
+        for (; next <= toRow; next++) list.add(readValue(compact, next, col));
+        return list;
+      }
+
+      Iterator<Row> it = sheet.rowIterator();
+      while (it.hasNext()) {
+        Row r = it.next();
+        int rowNum = r.getRowNum();
+        if (rowNum < fromRow) continue;
+        if (rowNum > toRow) break;
+
+        while (next < rowNum) {
+          list.add(new ZPEString(""));
+          next++;
+        }
+        list.add(readValue(r.getCell(col)));
+        next++;
+      }
+
+      while (next <= toRow) {
+        list.add(new ZPEString(""));
+        next++;
+      }
+      return list;
+    }
+
+    /**
+     * Builds a style definition from a map with the optional keys number_format,
+     * bold, italic, font_color, fill, align (left, center or right) and wrap.
+     * Missing keys leave that part of a cell's style as it is.
+     */
+    private static XLSXStyleRegistry.Style toStyle(ZPEMap map) {
+      ZPEType numberFormat = map.get(new ZPEString("number_format"));
+      ZPEType bold = map.get(new ZPEString("bold"));
+      ZPEType italic = map.get(new ZPEString("italic"));
+      ZPEType fontColor = map.get(new ZPEString("font_color"));
+      ZPEType fill = map.get(new ZPEString("fill"));
+      ZPEType align = map.get(new ZPEString("align"));
+      ZPEType wrap = map.get(new ZPEString("wrap"));
+
+      return new XLSXStyleRegistry.Style(
+          numberFormat == null ? null : numberFormat.toString(),
+          bold == null ? null : "true".equalsIgnoreCase(bold.toString()),
+          italic == null ? null : "true".equalsIgnoreCase(italic.toString()),
+          fontColor == null ? null : fontColor.toString(),
+          fill == null ? null : fill.toString(),
+          align == null ? null : HorizontalAlignment.valueOf(align.toString().toUpperCase()),
+          wrap == null ? null : "true".equalsIgnoreCase(wrap.toString()));
+    }
+
+    /**
+     * Writes the list into one row starting at the given column. The row is
+     * resolved once for the whole list. Returns the number of cells written or -1
+     * if the row can no longer be written, in which case nothing is written.
+     */
+    private int writeRow(int rowIndex, int colIndex, ZPEList values) {
+      return canWriteRow(rowIndex, colIndex, values) ? writeCells(rowIndex, colIndex, values) : -1;
+    }
+
+    /**
+     * Checks everything that would make writing the list fail part way: the
+     * row being flushed already, the cells falling outside the sheet and text
+     * longer than a cell can hold.
+     */
+    private boolean canWriteRow(int rowIndex, int colIndex, ZPEList values) {
+      if (rowIndex < 0 || colIndex < 0 || rowIndex > MAX_ROW) return false;
+      if (isFlushed(rowIndex)) return false;
+
+      int n = values.size();
+      if (n > 0 && colIndex + n - 1 > MAX_COLUMN) return false;
+      for (int i = 0; i < n; i++) {
+        ZPEType v = values.get(i);
+        if (!(v instanceof ZPENumber) && !(v instanceof ZPEBoolean) && v != null && v.toString().length() > MAX_TEXT_LENGTH) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private int writeCells(int rowIndex, int colIndex, ZPEList values) {
+      int n = values.size();
+      if (compact != null) {
+        for (int i = 0; i < n; i++) {
+          setValue(rowIndex, colIndex + i, values.get(i));
+        }
+        return n;
+      }
+
+      Row r = ensureRow(rowIndex);
+      boolean notify = workbookObj.getCreatedEvaluator() != null;
+      for (int i = 0; i < n; i++) {
+        Cell c = ensureCell(r, colIndex + i);
+        setValue(c, values.get(i));
+        if (notify) workbookObj.notifyCellChanged(c);
+      }
+      return n;
+    }
+
+    // ----------------------------
+    // Native methods
+    // ----------------------------
+
+    static final class set_cell_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"row", "col", "value"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"number", "number", "mixed"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          int row = asInt(parameters.get("row"));
+          int col = asInt(parameters.get("col"));
+          ZPEType value = parameters.get("value");
+
+          if (row < 0 || col < 0) return new ZPEBoolean(false);
+          if (so.isFlushed(row)) return new ZPEBoolean(false);
+
+          if (so.compact != null) {
+            so.setValue(row, col, value);
+            return new ZPEBoolean(true);
+          }
+
+          Row r = so.ensureRow(row);
+          Cell c = so.ensureCell(r, col);
+
+          so.setValue(c, value);
+          so.workbookObj.notifyCellChanged(c);
+          return new ZPEBoolean(true);
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "set_cell";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class get_cell_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"row", "col"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"number", "number"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          int row = asInt(parameters.get("row"));
+          int col = asInt(parameters.get("col"));
+
+          // Flushed rows are no longer readable, which is not the same as empty
+          if (row < 0 || col < 0 || so.isFlushed(row)) return new ZPEBoolean(false);
+
+          return so.readCell(row, col);
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "get_cell";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.STRING_TYPE, YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class get_value_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"row", "col"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"number", "number"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          int row = asInt(parameters.get("row"));
+          int col = asInt(parameters.get("col"));
+
+          if (row < 0 || col < 0 || so.isFlushed(row)) return new ZPEBoolean(false);
+          // Compact sheets hold no formulas
+          if (so.compact != null) return so.readCell(row, col);
+
+          Row r = so.sheet.getRow(row);
+          if (r == null) return new ZPEString("");
+
+          Cell c = r.getCell(col);
+          if (c == null || c.getCellType() != CellType.FORMULA) return readValue(c);
+
+          CellValue v = so.workbookObj.getEvaluator().evaluate(c);
+          switch (v.getCellType()) {
+            case STRING:
+              return new ZPEString(v.getStringValue());
+            case BOOLEAN:
+              return new ZPEBoolean(v.getBooleanValue());
+            case NUMERIC:
+              return new ZPENumber(v.getNumberValue());
+            case ERROR:
+              return new ZPEString(FormulaError.forInt(v.getErrorValue()).getString());
+            case BLANK:
+            default:
+              return new ZPEString("");
+          }
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "get_value";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.STRING_TYPE, YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class get_last_row_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          return new ZPENumber(so.lastRowNum());
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "get_last_row";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class get_name_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          return new ZPEString(so.getSheetName());
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "get_name";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.STRING_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class set_row_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"row", "values"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"number", "list"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          int row = asInt(parameters.get("row"));
+          ZPEType values = parameters.get("values");
+          if (!(values instanceof ZPEList)) return new ZPEBoolean(false);
+
+          int written = so.writeRow(row, 0, (ZPEList) values);
+          if (written < 0) return new ZPEBoolean(false);
+          return new ZPENumber(written);
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "set_row";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class append_row_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"values"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"list"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          ZPEType values = parameters.get("values");
+          if (!(values instanceof ZPEList)) return new ZPEBoolean(false);
+
+          int row = so.lastRowNum() + 1;
+
+          int written = so.writeRow(row, 0, (ZPEList) values);
+          if (written < 0) return new ZPEBoolean(false);
+          return new ZPENumber(written);
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "append_row";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    /**
+     * Writes all of the rows or none of them. The one exception is a streaming
+     * sheet failing to flush earlier rows to disk part way through, which can
+     * leave the rows before the failure written.
+     */
+    static final class set_range_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"row", "col", "rows"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"number", "number", "list"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          int row = asInt(parameters.get("row"));
+          int col = asInt(parameters.get("col"));
+          ZPEType rows = parameters.get("rows");
+          if (!(rows instanceof ZPEList)) return new ZPEBoolean(false);
+
+          // Every row is checked before any is written, so a bad row leaves the
+          // sheet untouched
+          ZPEList block = (ZPEList) rows;
+          for (int i = 0; i < block.size(); i++) {
+            ZPEType values = block.get(i);
+            if (!(values instanceof ZPEList) || !so.canWriteRow(row + i, col, (ZPEList) values)) return new ZPEBoolean(false);
+          }
+
+          int total = 0;
+          for (int i = 0; i < block.size(); i++) {
+            total += so.writeCells(row + i, col, (ZPEList) block.get(i));
+          }
+          return new ZPENumber(total);
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "set_range";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class get_row_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"row"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"number"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          int row = asInt(parameters.get("row"));
+          if (row < 0 || so.isFlushed(row)) return new ZPEBoolean(false);
+
+          return so.readRow(row, 0, -1);
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "get_row";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.LIST_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class get_range_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"row1", "col1", "row2", "col2"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"number", "number", "number", "number"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          int row1 = asInt(parameters.get("row1"));
+          int col1 = asInt(parameters.get("col1"));
+          int row2 = asInt(parameters.get("row2"));
+          int col2 = asInt(parameters.get("col2"));
+
+          if (row1 < 0 || col1 < 0 || row2 < row1 || col2 < col1) return new ZPEBoolean(false);
+          if (so.isFlushed(row1)) return new ZPEBoolean(false);
+
+          // Rows past the last one are left out and columns stop at the sheet's limit,
+          // so a range covering the whole sheet stays the size of its data
+          row2 = Math.min(row2, so.lastRowNum());
+          col2 = Math.min(col2, MAX_COLUMN);
+
+          ZPEList rows = new ZPEList();
+          for (int i = row1; i <= row2; i++) {
+            rows.add(so.readRow(i, col1, col2));
+          }
+          return rows;
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "get_range";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.LIST_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class to_list_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          if (so.isFlushed(0)) return new ZPEBoolean(false);
+
+          ZPEList rows = new ZPEList();
+          if (so.compact != null) {
+            for (int i = 0; i <= so.lastRowNum(); i++) {
+              rows.add(so.readRow(i, 0, -1));
+            }
+            return rows;
+          }
+
+          int next = 0;
+
+          // Missing rows become empty lists so that list indexes match row numbers
+          Iterator<Row> it = so.sheet.rowIterator();
+          while (it.hasNext()) {
+            Row r = it.next();
+            while (next < r.getRowNum()) {
+              rows.add(new ZPEList());
+              next++;
+            }
+            rows.add(readRow(r, 0, -1));
+            next++;
+          }
+          return rows;
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "to_list";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.LIST_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class get_column_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"col", "from_row", "to_row"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"number", "number", "number"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          int col = asInt(parameters.get("col"));
+          int fromRow = asInt(parameters.get("from_row"));
+          int toRow = asInt(parameters.get("to_row"));
+
+          if (col < 0 || fromRow < 0 || so.isFlushed(fromRow)) return new ZPEBoolean(false);
+          toRow = (toRow < 0) ? so.lastRowNum() : Math.min(toRow, so.lastRowNum());
+
+          return so.readColumn(col, fromRow, toRow);
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "get_column";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.LIST_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    static final class get_number_column_Command implements ZPEObjectNativeMethod {
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"col", "from_row", "to_row"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"number", "number", "number"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          int col = asInt(parameters.get("col"));
+          int fromRow = asInt(parameters.get("from_row"));
+          int toRow = asInt(parameters.get("to_row"));
+
+          if (col < 0 || fromRow < 0 || so.isFlushed(fromRow)) return new ZPEBoolean(false);
+
+          ZPEList values = new ZPEList();
+          so.forEachNumber(col, fromRow, toRow, v -> values.add(new ZPENumber(v)));
+          return values;
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
+      }
+
+      @Override
+      public int getRequiredPermissionLevel() {
+        return 0;
+      }
+
+      @Override
+      public String getName() {
+        return "get_number_column";
+      }
+
+      @Override
+      public byte[] returnTypes() {
+        return new byte[]{YASSByteCodes.LIST_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+      }
+    }
+
+    /**
+     * Serves sum_column, min_column, max_column and count_column, which only
+     * differ in the statistic they return. min and max return false when the
+     * column has no numbers, and all of them do once a streaming sheet has
+     * flushed rows, as the column can no longer be read in full.
+     */
+    static final class column_aggregate_Command implements ZPEObjectNativeMethod {
+      private final String name;
+
+      column_aggregate_Command(String name) {
+        this.name = name;
+      }
+
+      @Override
+      public String[] getParameterNames() {
+        return new String[]{"col"};
+      }
+
+      @Override
+      public String[] getParameterTypes() {
+        return new String[]{"number"};
+      }
+
+      @Override
+      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          int col = asInt(parameters.get("col"));
+          if (col < 0 || so.isFlushed(0)) return new ZPEBoolean(false);
+
+          DoubleSummaryStatistics stats = new DoubleSummaryStatistics();
+          so.forEachNumber(col, 0, -1, stats);
+
+          switch (name) {
+            case "sum_column":
+              return new ZPENumber(stats.getSum());
+            case "min_column":
+              return stats.getCount() == 0 ? new ZPEBoolean(false) : new ZPENumber(stats.getMin());
+            case "max_column":
+              return stats.getCount() == 0 ? new ZPEBoolean(false) : new ZPENumber(stats.getMax());
+            case "count_column":
+            default:
+              return new ZPENumber(stats.getCount());
+          }
 
-      @Override
-      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
-        ((ZPEXLSXWorkbookObject) parent).newFile();
-        return parent;
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
       }
 
       @Override
@@ -283,44 +3861,65 @@ public class Plugin implements ZPELibrary {
 
       @Override
       public String getName() {
-        return "new_file";
+        return name;
       }
 
       @Override
       public byte[] returnTypes() {
-        return new byte[]{YASSByteCodes.OBJECT};
+        return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
       }
     }
 
-    static final class open_Command implements ZPEObjectNativeMethod {
+    static final class set_style_Command implements ZPEObjectNativeMethod {
       @Override
       public String[] getParameterNames() {
-        return new String[]{"path"};
+        return new String[]{"row", "col", "style"};
       }
 
       @Override
       public String[] getParameterTypes() {
-        return new String[]{"string"};
+        return new String[]{"number", "number", "map"};
       }
 
       @Override
       public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
         try {
-          String path = parameters.get("path").toString();
-          return new ZPEBoolean(((ZPEXLSXWorkbookObject) parent).open(path));
+          int row = asInt(parameters.get("row"));
+          int col = asInt(parameters.get("col"));
+          ZPEType style = parameters.get("style");
+
+          if (row < 0 || col < 0 || !(style instanceof ZPEMap)) return new ZPEBoolean(false);
+          // Styles need POI cells, which compact sheets do not have
+          if (so.compact != null || so.isFlushed(row)) return new ZPEBoolean(false);
+
+          XLSXStyleRegistry.Style definition = toStyle((ZPEMap) style);
+
+          // Styles live in the workbook's styles table
+          Lock shared = so.workbookObj.getSharedWriteLock();
+          if (shared != null) shared.lock();
+          try {
+            Cell c = so.ensureCell(so.ensureRow(row), col);
+            c.setCellStyle(so.workbookObj.getStyles().get(c.getCellStyle(), definition));
+          } finally {
+            if (shared != null) shared.unlock();
+          }
+          return new ZPEBoolean(true);
+
         } catch (Exception e) {
+          XLSXMetrics.recordError(e);
           return new ZPEBoolean(false);
         }
       }
 
       @Override
       public int getRequiredPermissionLevel() {
-        return 3;
+        return 0;
       }
 
       @Override
       public String getName() {
-        return "open";
+        return "set_style";
       }
 
       @Override
@@ -329,57 +3928,96 @@ public class Plugin implements ZPELibrary {
       }
     }
 
-    static final class save_Command implements ZPEObjectNativeMethod {
+    static final class set_range_style_Command implements ZPEObjectNativeMethod {
       @Override
       public String[] getParameterNames() {
-        return new String[]{"path"};
+        return new String[]{"row1", "col1", "row2", "col2", "style"};
       }
 
       @Override
       public String[] getParameterTypes() {
-        return new String[]{"string"};
+        return new String[]{"number", "number", "number", "number", "map"};
       }
 
       @Override
       public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
         try {
-          String path = parameters.get("path").toString();
-          return new ZPEBoolean(((ZPEXLSXWorkbookObject) parent).save(path));
+          int row1 = asInt(parameters.get("row1"));
+          int col1 = asInt(parameters.get("col1"));
+          int row2 = asInt(parameters.get("row2"));
+          int col2 = asInt(parameters.get("col2"));
+          ZPEType style = parameters.get("style");
+
+          if (row1 < 0 || col1 < 0 || row2 < row1 || col2 < col1 || !(style instanceof ZPEMap)) return new ZPEBoolean(false);
+          // Checked up front so that either every cell is styled or none is.
+          // Flushed rows always come first, so row1 covers the whole range.
+          if (so.compact != null || row2 > MAX_ROW || col2 > MAX_COLUMN || so.isFlushed(row1)) return new ZPEBoolean(false);
+
+          XLSXStyleRegistry.Style definition = toStyle((ZPEMap) style);
+          XLSXStyleRegistry styles = so.workbookObj.getStyles();
+
+          Lock shared = so.workbookObj.getSharedWriteLock();
+          if (shared != null) shared.lock();
+          try {
+            for (int i = row1; i <= row2; i++) {
+              Row r = so.ensureRow(i);
+              for (int j = col1; j <= col2; j++) {
+                Cell c = so.ensureCell(r, j);
+                c.setCellStyle(styles.get(c.getCellStyle(), definition));
+              }
+            }
+          } finally {
+            if (shared != null) shared.unlock();
+          }
+          return new ZPENumber((double) (row2 - row1 + 1) * (col2 - col1 + 1));
+
         } catch (Exception e) {
+          XLSXMetrics.recordError(e);
           return new ZPEBoolean(false);
         }
       }
 
       @Override
       public int getRequiredPermissionLevel() {
-        return 3;
+        return 0;
       }
 
       @Override
       public String getName() {
-        return "save";
+        return "set_range_style";
       }
 
       @Override
       public byte[] returnTypes() {
-        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+        return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
       }
     }
 
-    static final class close_Command implements ZPEObjectNativeMethod {
+    static final class build_index_Command implements ZPEObjectNativeMethod {
       @Override
       public String[] getParameterNames() {
-        return new String[]{};
+        return new String[]{"col"};
       }
 
       @Override
       public String[] getParameterTypes() {
-        return new String[]{};
+        return new String[]{"number"};
       }
 
       @Override
       public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
-        return new ZPEBoolean(((ZPEXLSXWorkbookObject) parent).close());
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
+        try {
+          int col = asInt(parameters.get("col"));
+          if (col < 0 || so.sheet instanceof SXSSFSheet) return new ZPEBoolean(false);
+
+          return new ZPENumber(so.buildIndex(col));
+
+        } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          return new ZPEBoolean(false);
+        }
       }
 
       @Override
@@ -389,39 +4027,38 @@ public class Plugin implements ZPELibrary {
 
       @Override
       public String getName() {
-        return "close";
+        return "build_index";
       }
 
       @Override
       public byte[] returnTypes() {
-        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+        return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
       }
     }
 
-    static final class add_sheet_Command implements ZPEObjectNativeMethod {
+    static final class find_row_Command implements ZPEObjectNativeMethod {
       @Override
       public String[] getParameterNames() {
-        return new String[]{"name"};
+        return new String[]{"col", "value"};
       }
 
       @Override
       public String[] getParameterTypes() {
-        return new String[]{"string"};
+        return new String[]{"number", "mixed"};
       }
 
       @Override
       public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
         try {
-          ZPEXLSXWorkbookObject wb = (ZPEXLSXWorkbookObject) parent;
-          if (wb.getWorkbook() == null) return new ZPEBoolean(false);
-
-          String name = parameters.get("name").toString();
-          if (name.trim().isEmpty()) name = "Sheet" + (wb.getWorkbook().getNumberOfSheets() + 1);
+          int col = asInt(parameters.get("col"));
+          List<Integer> rows = so.findRows(col, parameters.get("value"));
+          if (rows == null || rows.isEmpty()) return new ZPEBoolean(false);
 
-          XSSFSheet sheet = wb.getWorkbook().createSheet(name);
-          return new ZPEXLSXSheetObject(wb.getRuntime(), wb, wb, sheet);
+          return new ZPENumber(rows.get(0));
 
         } catch (Exception e) {
+          XLSXMetrics.recordError(e);
           return new ZPEBoolean(false);
         }
       }
@@ -433,55 +4070,42 @@ public class Plugin implements ZPELibrary {
 
       @Override
       public String getName() {
-        return "add_sheet";
+        return "find_row";
       }
 
       @Override
       public byte[] returnTypes() {
-        return new byte[]{YASSByteCodes.OBJECT, YASSByteCodes.BOOLEAN_TYPE};
+        return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
       }
     }
 
-    static final class get_sheet_Command implements ZPEObjectNativeMethod {
+    static final class find_rows_Command implements ZPEObjectNativeMethod {
       @Override
       public String[] getParameterNames() {
-        return new String[]{"name_or_index"};
+        return new String[]{"col", "value"};
       }
 
       @Override
       public String[] getParameterTypes() {
-        return new String[]{"mixed"};
+        return new String[]{"number", "mixed"};
       }
 
       @Override
       public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
         try {
-          ZPEXLSXWorkbookObject wb = (ZPEXLSXWorkbookObject) parent;
-          if (wb.getWorkbook() == null) return new ZPEBoolean(false);
-
-          ZPEType v = parameters.get("name_or_index");
-          if (v == null) return new ZPEBoolean(false);
-
-          XSSFSheet sheet = null;
-
-          String s = v.toString();
-          Integer idx = null;
-          try {
-            idx = HelperFunctions.stringToInteger(s);
-          } catch (Exception ignored) {
-          }
+          int col = asInt(parameters.get("col"));
+          List<Integer> rows = so.findRows(col, parameters.get("value"));
+          if (rows == null) return new ZPEBoolean(false);
 
-          if (idx != null) {
-            if (idx < 0 || idx >= wb.getWorkbook().getNumberOfSheets()) return new ZPEBoolean(false);
-            sheet = wb.getWorkbook().getSheetAt(idx);
-          } else {
-            sheet = wb.getWorkbook().getSheet(s);
+          ZPEList list = new ZPEList();
+          for (int row : rows) {
+            list.add(new ZPENumber(row));
           }
-
-          if (sheet == null) return new ZPEBoolean(false);
-          return new ZPEXLSXSheetObject(wb.getRuntime(), wb, wb, sheet);
+          return list;
 
         } catch (Exception e) {
+          XLSXMetrics.recordError(e);
           return new ZPEBoolean(false);
         }
       }
@@ -493,33 +4117,41 @@ public class Plugin implements ZPELibrary {
 
       @Override
       public String getName() {
-        return "get_sheet";
+        return "find_rows";
       }
 
       @Override
       public byte[] returnTypes() {
-        return new byte[]{YASSByteCodes.OBJECT, YASSByteCodes.BOOLEAN_TYPE};
+        return new byte[]{YASSByteCodes.LIST_TYPE, YASSByteCodes.BOOLEAN_TYPE};
       }
     }
 
-    static final class get_sheet_count_Command implements ZPEObjectNativeMethod {
+    static final class lookup_Command implements ZPEObjectNativeMethod {
       @Override
       public String[] getParameterNames() {
-        return new String[]{};
+        return new String[]{"col", "value", "return_col"};
       }
 
       @Override
       public String[] getParameterTypes() {
-        return new String[]{};
+        return new String[]{"number", "mixed", "number"};
       }
 
       @Override
       public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXSheetObject so = (ZPEXLSXSheetObject) parent;
         try {
-          ZPEXLSXWorkbookObject wb = (ZPEXLSXWorkbookObject) parent;
-          if (wb.getWorkbook() == null) return new ZPEBoolean(false);
-          return new ZPENumber(wb.getWorkbook().getNumberOfSheets());
+          int col = asInt(parameters.get("col"));
+          int returnCol = asInt(parameters.get("return_col"));
+          if (returnCol < 0) return new ZPEBoolean(false);
+
+          List<Integer> rows = so.findRows(col, parameters.get("value"));
+          if (rows == null || rows.isEmpty()) return new ZPEBoolean(false);
+
+          return so.readCell(rows.get(0), returnCol);
+
         } catch (Exception e) {
+          XLSXMetrics.recordError(e);
           return new ZPEBoolean(false);
         }
       }
@@ -531,101 +4163,82 @@ public class Plugin implements ZPELibrary {
 
       @Override
       public String getName() {
-        return "get_sheet_count";
+        return "lookup";
       }
 
       @Override
       public byte[] returnTypes() {
-        return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+        return new byte[]{YASSByteCodes.STRING_TYPE, YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
       }
     }
   }
 
   // =============================================================================
-  // ZPEXLSXSheetObject
+  // ZPEXLSXRowReaderObject
   // =============================================================================
-  public static final class ZPEXLSXSheetObject extends ZPEStructure {
-
-    private static final long serialVersionUID = 7412849723950412345L;
+  public static final class ZPEXLSXRowReaderObject extends ZPEStructure {
 
-    private final ZPEXLSXWorkbookObject workbookObj;
-    private final transient XSSFSheet sheet;
+    private static final long serialVersionUID = 5127730948214476602L;
 
-    public ZPEXLSXSheetObject(ZPERuntimeEnvironment z, ZPEPropertyWrapper parent, ZPEXLSXWorkbookObject workbookObj, XSSFSheet sheet) {
-      super(z, parent, "ZPEXLSXSheet");
-      this.workbookObj = workbookObj;
-      this.sheet = sheet;
+    private transient XLSXSheetReader reader;
 
-      addNativeMethod("set_cell", new set_cell_Command());
-      addNativeMethod("get_cell", new get_cell_Command());
-      addNativeMethod("get_last_row", new get_last_row_Command());
-      addNativeMethod("get_name", new get_name_Command());
-    }
+    public ZPEXLSXRowReaderObject(ZPERuntimeEnvironment z, ZPEPropertyWrapper parent, XLSXSheetReader reader) {
+      super(z, parent, "ZPEXLSXRowReader");
+      this.reader = reader;
 
-    private static int asInt(ZPEType t) {
-      return HelperFunctions.stringToInteger(t.toString());
+      addNativeMethod("next_row", XLSXMetrics.timed("ZPEXLSXRowReader", new next_row_Command()));
+      addNativeMethod("get_row_number", XLSXMetrics.timed("ZPEXLSXRowReader", new get_row_number_Command()));
+      addNativeMethod("close", XLSXMetrics.timed("ZPEXLSXRowReader", new close_Command()));
     }
 
-    private Row ensureRow(int rowIndex) {
-      Row r = sheet.getRow(rowIndex);
-      if (r == null) r = sheet.createRow(rowIndex);
-      return r;
+    XLSXSheetReader getReader() {
+      return reader;
     }
 
-    private Cell ensureCell(Row r, int colIndex) {
-      Cell c = r.getCell(colIndex);
-      if (c == null) c = r.createCell(colIndex);
-      return c;
+    boolean close() {
+      try {
+        if (reader != null) reader.close();
+        reader = null;
+        return true;
+      } catch (Exception e) {
+        XLSXMetrics.recordError(e);
+        reader = null;
+        return false;
+      }
     }
 
     // ----------------------------
     // Native methods
     // ----------------------------
 
-    final class set_cell_Command implements ZPEObjectNativeMethod {
+    static final class next_row_Command implements ZPEObjectNativeMethod {
       @Override
       public String[] getParameterNames() {
-        return new String[]{"row", "col", "value"};
+        return new String[]{};
       }
 
       @Override
       public String[] getParameterTypes() {
-        return new String[]{"number", "number", "mixed"};
+        return new String[]{};
       }
 
       @Override
       public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+        ZPEXLSXRowReaderObject rr = (ZPEXLSXRowReaderObject) parent;
         try {
-          int row = asInt(parameters.get("row"));
-          int col = asInt(parameters.get("col"));
-          ZPEType value = parameters.get("value");
-
-          if (row < 0 || col < 0) return new ZPEBoolean(false);
-
-          Row r = ensureRow(row);
-          Cell c = ensureCell(r, col);
-
-          String vs = (value == null) ? "" : value.toString();
-
-          // Boolean?
-          if ("true".equalsIgnoreCase(vs) || "false".equalsIgnoreCase(vs)) {
-            c.setCellValue(Boolean.parseBoolean(vs));
-            return new ZPEBoolean(true);
-          }
+          XLSXSheetReader reader = rr.getReader();
+          if (reader == null) return new ZPEBoolean(false);
 
-          // Number?
-          try {
-            double d = Double.parseDouble(vs.trim());
-            c.setCellValue(d);
-            return new ZPEBoolean(true);
-          } catch (Exception ignored) {
+          if (!reader.nextRow()) {
+            // Release the file as soon as the end is reached
+            rr.close();
+            return new ZPEBoolean(false);
           }
-
-          // Default string
-          c.setCellValue(vs);
-          return new ZPEBoolean(true);
+          return toZPEList(reader.getValues());
 
         } catch (Exception e) {
+          XLSXMetrics.recordError(e);
+          rr.close();
           return new ZPEBoolean(false);
         }
       }
@@ -637,61 +4250,31 @@ public class Plugin implements ZPELibrary {
 
       @Override
       public String getName() {
-        return "set_cell";
+        return "next_row";
       }
 
       @Override
       public byte[] returnTypes() {
-        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
+        return new byte[]{YASSByteCodes.LIST_TYPE, YASSByteCodes.BOOLEAN_TYPE};
       }
     }
 
-    final class get_cell_Command implements ZPEObjectNativeMethod {
+    static final class get_row_number_Command implements ZPEObjectNativeMethod {
       @Override
       public String[] getParameterNames() {
-        return new String[]{"row", "col"};
+        return new String[]{};
       }
 
       @Override
       public String[] getParameterTypes() {
-        return new String[]{"number", "number"};
+        return new String[]{};
       }
 
       @Override
       public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
-        try {
-          int row = asInt(parameters.get("row"));
-          int col = asInt(parameters.get("col"));
-
-          if (row < 0 || col < 0) return new ZPEBoolean(false);
-
-          Row r = sheet.getRow(row);
-          if (r == null) return new ZPEString("");
-
-          Cell c = r.getCell(col);
-          if (c == null) return new ZPEString("");
-
-          CellType ct = c.getCellType();
-          if (ct == CellType.FORMULA) {
-            // Keep your old behaviour: return the formula string
-            return new ZPEString(c.getCellFormula());
-          }
-
-          switch (ct) {
-            case STRING:
-              return new ZPEString(c.getStringCellValue());
-            case BOOLEAN:
-              return new ZPEBoolean(c.getBooleanCellValue());
-            case NUMERIC:
-              return new ZPENumber(c.getNumericCellValue());
-            case BLANK:
-            default:
-              return new ZPEString("");
-          }
-
-        } catch (Exception e) {
-          return new ZPEBoolean(false);
-        }
+        XLSXSheetReader reader = ((ZPEXLSXRowReaderObject) parent).getReader();
+        if (reader == null) return new ZPEBoolean(false);
+        return new ZPENumber(reader.getRowNum());
       }
 
       @Override
@@ -701,16 +4284,16 @@ public class Plugin implements ZPELibrary {
 
       @Override
       public String getName() {
-        return "get_cell";
+        return "get_row_number";
       }
 
       @Override
       public byte[] returnTypes() {
-        return new byte[]{YASSByteCodes.STRING_TYPE, YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+        return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
       }
     }
 
-    final class get_last_row_Command implements ZPEObjectNativeMethod {
+    static final class close_Command implements ZPEObjectNativeMethod {
       @Override
       public String[] getParameterNames() {
         return new String[]{};
@@ -723,11 +4306,7 @@ public class Plugin implements ZPELibrary {
 
       @Override
       public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
-        try {
-          return new ZPENumber(sheet.getLastRowNum());
-        } catch (Exception e) {
-          return new ZPEBoolean(false);
-        }
+        return new ZPEBoolean(((ZPEXLSXRowReaderObject) parent).close());
       }
 
       @Override
@@ -737,49 +4316,162 @@ public class Plugin implements ZPELibrary {
 
       @Override
       public String getName() {
-        return "get_last_row";
+        return "close";
       }
 
       @Override
       public byte[] returnTypes() {
-        return new byte[]{YASSByteCodes.NUMBER_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+        return new byte[]{YASSByteCodes.BOOLEAN_TYPE};
       }
     }
+  }
 
-    final class get_name_Command implements ZPEObjectNativeMethod {
-      @Override
-      public String[] getParameterNames() {
-        return new String[]{};
-      }
+  // =============================================================================
+  // TunableSXSSFWorkbook
+  // =============================================================================
 
-      @Override
-      public String[] getParameterTypes() {
-        return new String[]{};
-      }
+  /**
+   * SXSSF builds its own zip stream when writing, so the compression level has
+   * to be applied where that stream is created.
+   */
+  static final class TunableSXSSFWorkbook extends SXSSFWorkbook {
 
-      @Override
-      public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
-        try {
-          return new ZPEString(sheet.getSheetName());
-        } catch (Exception e) {
-          return new ZPEBoolean(false);
-        }
-      }
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
 
-      @Override
-      public int getRequiredPermissionLevel() {
-        return 0;
+    TunableSXSSFWorkbook(int windowSize, boolean compressTmpFiles, boolean useSharedStringsTable) {
+      super(null, windowSize, compressTmpFiles, useSharedStringsTable);
+    }
+
+    void setCompressionLevel(int compressionLevel) {
+      this.compressionLevel = compressionLevel;
+    }
+
+    @Override
+    protected ZipArchiveOutputStream createArchiveOutputStream(OutputStream out) {
+      ZipArchiveOutputStream zos = super.createArchiveOutputStream(out);
+      zos.setLevel(compressionLevel);
+      return zos;
+    }
+  }
+
+  // =============================================================================
+  // PooledByteArrayOutputStream
+  // =============================================================================
+
+  /**
+   * Growable byte buffer that is kept per thread so that repeated in-memory
+   * saves reuse the same backing array. Buffers that grew past MAX_POOLED_SIZE
+   * are dropped after use rather than pinned, as a pool of script threads would
+   * otherwise each hold on to the largest workbook they ever wrote.
+   */
+  static final class PooledByteArrayOutputStream extends ByteArrayOutputStream {
+
+    private static final int INITIAL_SIZE = 1 << 16;
+    private static final int MAX_POOLED_SIZE = 1 << 22;
+
+    private static final ThreadLocal<PooledByteArrayOutputStream> POOL = new ThreadLocal<>();
+
+    private PooledByteArrayOutputStream() {
+      super(INITIAL_SIZE);
+    }
+
+    static PooledByteArrayOutputStream acquire() {
+      PooledByteArrayOutputStream buffer = POOL.get();
+      if (buffer == null) {
+        buffer = new PooledByteArrayOutputStream();
+      } else {
+        POOL.remove();
       }
+      buffer.reset();
+      return buffer;
+    }
 
-      @Override
-      public String getName() {
-        return "get_name";
+    void release() {
+      if (buf.length <= MAX_POOLED_SIZE) {
+        POOL.set(this);
       }
+    }
 
-      @Override
-      public byte[] returnTypes() {
-        return new byte[]{YASSByteCodes.STRING_TYPE, YASSByteCodes.BOOLEAN_TYPE};
+    /**
+     * Encodes the written bytes without copying them out of the buffer first.
+     */
+    String toBase64() {
+      ByteBuffer encoded = Base64.getEncoder().encode(ByteBuffer.wrap(buf, 0, count));
+      return new String(encoded.array(), 0, encoded.limit(), StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  // =============================================================================
+  // Helpers
+  // =============================================================================
+
+  private static final int CSV_BUFFER_SIZE = 1 << 16;
+
+  /**
+   * Reads an entry of an options map passed to a global function, falling back
+   * to the default if the map or the key is missing.
+   */
+  static String option(Object options, String key, String def) {
+    if (!(options instanceof ZPEMap)) return def;
+    ZPEType v = ((ZPEMap) options).get(new ZPEString(key));
+    return (v == null) ? def : v.toString();
+  }
+
+  static char csvDelimiter(Object options) {
+    String d = option(options, "delimiter", ",");
+    if ("tab".equalsIgnoreCase(d) || "\\t".equals(d)) return '\t';
+    if (d.length() != 1) throw new IllegalArgumentException("Delimiter must be a single character");
+    return d.charAt(0);
+  }
+
+  static int asInt(ZPEType t) {
+    return HelperFunctions.stringToInteger(t.toString());
+  }
+
+  /**
+   * Converts a value produced by the streaming readers (String, Double, Boolean or null).
+   */
+  static ZPEType toZPEType(Object v) {
+    if (v == null) return new ZPEString("");
+    if (v instanceof Double) return new ZPENumber((Double) v);
+    if (v instanceof Boolean) return new ZPEBoolean((Boolean) v);
+    return new ZPEString(v.toString());
+  }
+
+  /**
+   * Reads the remaining rows of a streaming reader into a list of rows. Rows
+   * missing from the file become empty lists so that list indexes match row
+   * numbers.
+   */
+  static ZPEList readAllRows(XLSXSheetReader reader) throws Exception {
+    ZPEList rows = new ZPEList();
+    int next = 0;
+    while (reader.nextRow()) {
+      while (next < reader.getRowNum()) {
+        rows.add(new ZPEList());
+        next++;
       }
+      rows.add(toZPEList(reader.getValues()));
+      next++;
+    }
+    return rows;
+  }
+
+  /**
+   * The reverse of toZPEType, giving values comparable with those produced by
+   * the streaming readers.
+   */
+  static Object fromZPEType(ZPEType v) {
+    if (v instanceof ZPENumber) return ((ZPENumber) v).doubleValue();
+    if (v instanceof ZPEBoolean) return "true".equals(v.toString());
+    return (v == null) ? "" : v.toString();
+  }
+
+  static ZPEList toZPEList(List<Object> values) {
+    ZPEList list = new ZPEList();
+    for (Object v : values) {
+      list.add(toZPEType(v));
     }
+    return list;
   }
 }
\ No newline at end of file
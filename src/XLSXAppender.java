@@ -0,0 +1,216 @@
+/*
+ * zpe.lib.xlsx
+ *
+ * Appends rows to one sheet of an existing file without loading the workbook.
+ *
+ * The package is rewritten entry by entry into a temp file. Every entry other
+ * than the target sheet is copied across still compressed. The sheet itself is
+ * streamed through StAX and the new rows are written just before the end of its
+ * sheetData, so the cost depends on the size of that sheet and of the new rows
+ * rather than on the whole workbook. New strings are written inline so that the
+ * shared strings table is left untouched.
+ */
+
+import jamiebalfour.HelperFunctions;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+final class XLSXAppender {
+
+  private static final String XML_NS = "http://www.w3.org/XML/1998/namespace";
+
+  private static final XMLEventFactory EVENTS = XMLEventFactory.newInstance();
+
+  private XLSXAppender() {
+  }
+
+  /**
+   * Appends the rows after the last row stored in the sheet given by name or
+   * zero-based index. Values are Doubles, Booleans or Strings, and nulls leave
+   * the cell empty. Returns false if the sheet does not exist.
+   */
+  static boolean appendRows(File file, String nameOrIndex, List<? extends List<Object>> rows) throws Exception {
+    String part = findSheetPart(file, nameOrIndex);
+    if (part == null) return false;
+
+    File target = file.getAbsoluteFile();
+    File tmp = File.createTempFile(".xlsx-", ".tmp", target.getParentFile());
+    try {
+      try (ZipFile zip = ZipFile.builder().setFile(target).get();
+           ZipArchiveOutputStream out = new ZipArchiveOutputStream(tmp)) {
+
+        Enumeration<ZipArchiveEntry> entries = zip.getEntriesInPhysicalOrder();
+        for (ZipArchiveEntry entry : Collections.list(entries)) {
+          if (entry.getName().equals(part)) {
+            ZipArchiveEntry copy = new ZipArchiveEntry(entry.getName());
+            copy.setMethod(ZipArchiveEntry.DEFLATED);
+            copy.setTime(entry.getTime());
+            out.putArchiveEntry(copy);
+            try (InputStream in = zip.getInputStream(entry)) {
+              copySheet(in, out, rows);
+            }
+            out.closeArchiveEntry();
+          } else {
+            try (InputStream raw = zip.getRawInputStream(entry)) {
+              out.addRawArchiveEntry(entry, raw);
+            }
+          }
+        }
+      }
+
+      try {
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      return true;
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Returns the zip entry name of the sheet part, such as
+   * "xl/worksheets/sheet1.xml", reading only the workbook part and its
+   * relationships.
+   */
+  private static String findSheetPart(File file, String nameOrIndex) throws Exception {
+    Integer idx = null;
+    try {
+      idx = HelperFunctions.stringToInteger(nameOrIndex);
+    } catch (Exception ignored) {
+    }
+
+    OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+    try {
+      XSSFReader.SheetIterator it = (XSSFReader.SheetIterator) new XSSFReader(pkg).getSheetsData();
+      int i = 0;
+      while (it.hasNext()) {
+        it.next().close();
+        if ((idx != null && idx == i) || (idx == null && it.getSheetName().equals(nameOrIndex))) {
+          return it.getSheetPart().getPartName().getName().substring(1);
+        }
+        i++;
+      }
+      return null;
+    } finally {
+      pkg.revert();
+    }
+  }
+
+  /**
+   * Copies the sheet XML event by event and inserts the new rows at the end of
+   * sheetData. The dimension element is dropped rather than rewritten, as the
+   * final extent is only known once every row has been read, and it is
+   * optional in the format.
+   */
+  private static void copySheet(InputStream in, OutputStream out, List<? extends List<Object>> rows) throws Exception {
+    XMLEventReader reader = XMLHelper.newXMLInputFactory().createXMLEventReader(in);
+    XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, "UTF-8");
+
+    int lastRow = 0;
+    boolean skipping = false;
+
+    while (reader.hasNext()) {
+      XMLEvent ev = reader.nextEvent();
+
+      if (ev.isStartElement()) {
+        StartElement start = ev.asStartElement();
+        String name = start.getName().getLocalPart();
+        if ("dimension".equals(name)) {
+          skipping = true;
+          continue;
+        }
+        if ("row".equals(name)) {
+          Attribute r = start.getAttributeByName(new QName("r"));
+          lastRow = (r == null) ? lastRow + 1 : Integer.parseInt(r.getValue());
+        }
+      } else if (ev.isEndElement()) {
+        String name = ev.asEndElement().getName().getLocalPart();
+        if ("dimension".equals(name)) {
+          skipping = false;
+          continue;
+        }
+        if ("sheetData".equals(name)) {
+          QName sheetData = ev.asEndElement().getName();
+          writeRows(writer, sheetData.getNamespaceURI(), sheetData.getPrefix(), lastRow, rows);
+        }
+      }
+
+      if (!skipping) writer.add(ev);
+    }
+
+    writer.flush();
+    writer.close();
+    reader.close();
+  }
+
+  private static void writeRows(XMLEventWriter writer, String ns, String prefix, int lastRow, List<? extends List<Object>> rows) throws Exception {
+    int rowNum = lastRow;
+    for (List<Object> values : rows) {
+      rowNum++;
+      writer.add(EVENTS.createStartElement(prefix, ns, "row"));
+      writer.add(EVENTS.createAttribute("r", Integer.toString(rowNum)));
+
+      for (int col = 0; col < values.size(); col++) {
+        Object v = values.get(col);
+        if (v == null) continue;
+
+        writer.add(EVENTS.createStartElement(prefix, ns, "c"));
+        writer.add(EVENTS.createAttribute("r", CellReference.convertNumToColString(col) + rowNum));
+
+        if (v instanceof Double) {
+          double d = (Double) v;
+          if (Double.isNaN(d) || Double.isInfinite(d)) throw new IllegalArgumentException("Cannot store " + d);
+          element(writer, prefix, ns, "v", XLSXCsv.formatNumber(d));
+        } else if (v instanceof Boolean) {
+          writer.add(EVENTS.createAttribute("t", "b"));
+          element(writer, prefix, ns, "v", ((Boolean) v) ? "1" : "0");
+        } else {
+          String s = v.toString();
+          writer.add(EVENTS.createAttribute("t", "inlineStr"));
+          writer.add(EVENTS.createStartElement(prefix, ns, "is"));
+          writer.add(EVENTS.createStartElement(prefix, ns, "t"));
+          if (!s.equals(s.trim())) writer.add(EVENTS.createAttribute("xml", XML_NS, "space", "preserve"));
+          writer.add(EVENTS.createCharacters(s));
+          writer.add(EVENTS.createEndElement(prefix, ns, "t"));
+          writer.add(EVENTS.createEndElement(prefix, ns, "is"));
+        }
+
+        writer.add(EVENTS.createEndElement(prefix, ns, "c"));
+      }
+
+      writer.add(EVENTS.createEndElement(prefix, ns, "row"));
+    }
+  }
+
+  private static void element(XMLEventWriter writer, String prefix, String ns, String name, String text) throws Exception {
+    writer.add(EVENTS.createStartElement(prefix, ns, name));
+    writer.add(EVENTS.createCharacters(text));
+    writer.add(EVENTS.createEndElement(prefix, ns, name));
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * zpe.lib.xlsx
+ *
+ * Sheet held in primitive arrays instead of POI cell objects.
+ *
+ * Cells are striped by column. Each column keeps a double[] indexed by row for
+ * numbers, an int[] of string ids (allocated once the column holds text) and
+ * bitsets recording which rows are set and whether they hold text or a boolean.
+ * Strings are interned in the workbook, so a cell costs about 8 bytes, or 12 in
+ * columns that mix text and numbers, against several hundred for an XSSF cell.
+ *
+ * Only values are kept. There are no formulas or styles, and the sheet is
+ * turned into XLSX by XLSXCompactWorkbook when the workbook is written.
+ */
+
+import org.apache.poi.ss.SpreadsheetVersion;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.DoubleConsumer;
+
+final class XLSXCompactSheet {
+
+  static final byte BLANK = 0;
+  static final byte NUMBER = 1;
+  static final byte STRING = 2;
+  static final byte BOOLEAN = 3;
+
+  private static final int MAX_ROW = SpreadsheetVersion.EXCEL2007.getLastRowIndex();
+  private static final int MAX_COLUMN = SpreadsheetVersion.EXCEL2007.getLastColumnIndex();
+
+  private static final int INITIAL_ROWS = 16;
+
+  private static final class Column {
+    double[] numbers = new double[0];
+    int[] strings;
+    final BitSet set = new BitSet();
+    final BitSet text = new BitSet();
+    final BitSet bool = new BitSet();
+
+    void ensureCapacity(int row) {
+      if (row < numbers.length) return;
+      int size = Math.max(Math.max(row + 1, numbers.length + (numbers.length >> 1)), INITIAL_ROWS);
+      size = Math.min(size, MAX_ROW + 1);
+      numbers = Arrays.copyOf(numbers, size);
+      if (strings != null) strings = Arrays.copyOf(strings, size);
+    }
+  }
+
+  private final XLSXCompactWorkbook workbook;
+  private final String name;
+  private Column[] columns = new Column[0];
+  private int lastRow = -1;
+
+  XLSXCompactSheet(XLSXCompactWorkbook workbook, String name) {
+    this.workbook = workbook;
+    this.name = name;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Last row holding a value, or -1 if the sheet is empty.
+   */
+  int getLastRow() {
+    return lastRow;
+  }
+
+  int getColumnCount() {
+    return columns.length;
+  }
+
+  /**
+   * Last column of the row holding a value, or -1 if the row is empty.
+   */
+  int getLastColumn(int row) {
+    for (int col = columns.length - 1; col >= 0; col--) {
+      if (columns[col] != null && columns[col].set.get(row)) return col;
+    }
+    return -1;
+  }
+
+  byte getType(int row, int col) {
+    Column c = (col < columns.length) ? columns[col] : null;
+    if (c == null || !c.set.get(row)) return BLANK;
+    if (c.text.get(row)) return STRING;
+    return c.bool.get(row) ? BOOLEAN : NUMBER;
+  }
+
+  double getNumber(int row, int col) {
+    return columns[col].numbers[row];
+  }
+
+  /**
+   * Booleans are kept in the number array as 1 or 0.
+   */
+  boolean getBoolean(int row, int col) {
+    return columns[col].numbers[row] != 0;
+  }
+
+  String getString(int row, int col) {
+    return workbook.getString(columns[col].strings[row]);
+  }
+
+  void setNumber(int row, int col, double value) {
+    Column c = column(row, col);
+    c.numbers[row] = value;
+    c.text.clear(row);
+    c.bool.clear(row);
+  }
+
+  void setBoolean(int row, int col, boolean value) {
+    Column c = column(row, col);
+    c.numbers[row] = value ? 1 : 0;
+    c.text.clear(row);
+    c.bool.set(row);
+  }
+
+  void setString(int row, int col, String value) {
+    Column c = column(row, col);
+    if (c.strings == null) c.strings = new int[c.numbers.length];
+    c.strings[row] = workbook.intern(value);
+    c.numbers[row] = 0;
+    c.text.set(row);
+    c.bool.clear(row);
+  }
+
+  private Column column(int row, int col) {
+    if (row < 0 || row > MAX_ROW) throw new IllegalArgumentException("Invalid row number (" + row + ")");
+    if (col < 0 || col > MAX_COLUMN) throw new IllegalArgumentException("Invalid column index (" + col + ")");
+
+    if (col >= columns.length) columns = Arrays.copyOf(columns, col + 1);
+    Column c = columns[col];
+    if (c == null) {
+      c = new Column();
+      columns[col] = c;
+    }
+    c.ensureCapacity(row);
+    c.set.set(row);
+    if (row > lastRow) lastRow = row;
+    return c;
+  }
+
+  /**
+   * Passes every number in the column between fromRow and toRow to the consumer.
+   * A toRow of -1 means the last row.
+   */
+  void forEachNumber(int col, int fromRow, int toRow, DoubleConsumer consumer) {
+    Column c = (col < columns.length) ? columns[col] : null;
+    if (c == null) return;
+    int end = (toRow < 0) ? c.numbers.length - 1 : Math.min(toRow, c.numbers.length - 1);
+
+    for (int row = c.set.nextSetBit(fromRow); row >= 0 && row <= end; row = c.set.nextSetBit(row + 1)) {
+      if (!c.text.get(row) && !c.bool.get(row)) consumer.accept(c.numbers[row]);
+    }
+  }
+
+  /**
+   * Number of text cells, the equivalent of the total count of a shared strings
+   * table.
+   */
+  int getStringCellCount() {
+    int count = 0;
+    for (Column c : columns) {
+      if (c != null) count += c.text.cardinality();
+    }
+    return count;
+  }
+
+  int getCellCount() {
+    int count = 0;
+    for (Column c : columns) {
+      if (c != null) count += c.set.cardinality();
+    }
+    return count;
+  }
+
+  /**
+   * Approximate bytes held by the cell arrays, not counting the strings
+   * themselves.
+   */
+  long getCellBytes() {
+    long bytes = 0;
+    for (Column c : columns) {
+      if (c == null) continue;
+      bytes += 8L * c.numbers.length;
+      if (c.strings != null) bytes += 4L * c.strings.length;
+      bytes += (c.set.size() + c.text.size() + c.bool.size()) / 8;
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * zpe.lib.xlsx
+ *
+ * Workbook made of XLSXCompactSheets.
+ *
+ * Holds the sheets and the string table shared by them. Nothing is built in
+ * POI until the workbook is written, at which point the sheets are streamed row
+ * by row through SXSSF, so writing needs little more memory than the compact
+ * sheets themselves.
+ */
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.WorkbookUtil;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class XLSXCompactWorkbook {
+
+  private final ArrayList<XLSXCompactSheet> sheets = new ArrayList<>();
+
+  private final HashMap<String, Integer> stringIds = new HashMap<>();
+  private final ArrayList<String> strings = new ArrayList<>();
+
+  int intern(String s) {
+    Integer id = stringIds.get(s);
+    if (id == null) {
+      id = strings.size();
+      strings.add(s);
+      stringIds.put(s, id);
+    }
+    return id;
+  }
+
+  String getString(int id) {
+    return strings.get(id);
+  }
+
+  int getUniqueStringCount() {
+    return strings.size();
+  }
+
+  int getStringCellCount() {
+    int count = 0;
+    for (XLSXCompactSheet s : sheets) count += s.getStringCellCount();
+    return count;
+  }
+
+  /**
+   * Sheet names follow the same rules as in Excel, so that any compact workbook
+   * can be written.
+   */
+  XLSXCompactSheet createSheet(String name) {
+    WorkbookUtil.validateSheetName(name);
+    if (getSheetIndex(name) >= 0) throw new IllegalArgumentException("The workbook already contains a sheet named '" + name + "'");
+
+    XLSXCompactSheet sheet = new XLSXCompactSheet(this, name);
+    sheets.add(sheet);
+    return sheet;
+  }
+
+  int getNumberOfSheets() {
+    return sheets.size();
+  }
+
+  XLSXCompactSheet getSheetAt(int index) {
+    return sheets.get(index);
+  }
+
+  /**
+   * Names are compared ignoring case as in Excel. Returns -1 if there is no
+   * such sheet.
+   */
+  int getSheetIndex(String name) {
+    for (int i = 0; i < sheets.size(); i++) {
+      if (sheets.get(i).getName().equalsIgnoreCase(name)) return i;
+    }
+    return -1;
+  }
+
+  List<XLSXCompactSheet> getSheets() {
+    return sheets;
+  }
+
+  /**
+   * Reads the values of every sheet with the streaming reader, so no XSSF model
+   * is built along the way. Formulas keep only their cached result.
+   */
+  static XLSXCompactWorkbook read(File file) throws Exception {
+    XLSXCompactWorkbook wb = new XLSXCompactWorkbook();
+    OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+    try {
+      Map<String, XLSXSheetReader> readers = XLSXSheetReader.openAll(pkg);
+      try {
+        for (Map.Entry<String, XLSXSheetReader> entry : readers.entrySet()) {
+          XLSXCompactSheet sheet = wb.createSheet(entry.getKey());
+          XLSXSheetReader reader = entry.getValue();
+          while (reader.nextRow()) {
+            int row = reader.getRowNum();
+            List<Object> values = reader.getValues();
+            for (int col = 0; col < values.size(); col++) {
+              Object v = values.get(col);
+              if (v instanceof Double) sheet.setNumber(row, col, (Double) v);
+              else if (v instanceof Boolean) sheet.setBoolean(row, col, (Boolean) v);
+              else if (v != null) sheet.setString(row, col, v.toString());
+            }
+          }
+        }
+      } finally {
+        for (XLSXSheetReader r : readers.values()) r.close();
+      }
+    } finally {
+      pkg.revert();
+    }
+    return wb;
+  }
+
+  /**
+   * Writes the workbook as XLSX. Strings go to a shared strings table unless
+   * inlineStrings is set.
+   */
+  void write(OutputStream out, int compressionLevel, boolean inlineStrings) throws IOException {
+    Plugin.TunableSXSSFWorkbook workbook = new Plugin.TunableSXSSFWorkbook(SXSSFWorkbook.DEFAULT_WINDOW_SIZE, true, !inlineStrings);
+    try {
+      for (XLSXCompactSheet s : sheets) {
+        writeSheet(s, workbook.createSheet(s.getName()));
+      }
+      workbook.setCompressionLevel(compressionLevel);
+      workbook.write(out);
+    } finally {
+      // Also removes the temp files holding the flushed rows
+      workbook.close();
+    }
+  }
+
+  private static void writeSheet(XLSXCompactSheet s, Sheet sheet) {
+    int columns = s.getColumnCount();
+    for (int row = 0; row <= s.getLastRow(); row++) {
+      Row r = null;
+      for (int col = 0; col < columns; col++) {
+        byte type = s.getType(row, col);
+        if (type == XLSXCompactSheet.BLANK) continue;
+        if (r == null) r = sheet.createRow(row);
+
+        switch (type) {
+          case XLSXCompactSheet.NUMBER:
+            r.createCell(col).setCellValue(s.getNumber(row, col));
+            break;
+          case XLSXCompactSheet.BOOLEAN:
+            r.createCell(col).setCellValue(s.getBoolean(row, col));
+            break;
+          default:
+            r.createCell(col).setCellValue(s.getString(row, col));
+            break;
+        }
+      }
+    }
+  }
+}
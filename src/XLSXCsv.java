@@ -0,0 +1,181 @@
+/*
+ * zpe.lib.xlsx
+ *
+ * Streaming CSV/TSV conversion.
+ *
+ * Records are parsed one at a time from a buffered reader following RFC 4180
+ * (quoted fields may contain delimiters, doubled quotes and line breaks) and
+ * written one at a time when going the other way, so memory use does not
+ * depend on the size of the file.
+ */
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+final class XLSXCsv {
+
+  private XLSXCsv() {
+  }
+
+  /**
+   * Copies every record of the CSV into consecutive rows of the sheet. With
+   * inferTypes, fields that look like numbers or booleans are stored as such,
+   * otherwise every field is text. Returns the number of rows written.
+   */
+  static int copyToSheet(BufferedReader in, Sheet sheet, char delimiter, boolean inferTypes) throws IOException {
+    ArrayList<String> fields = new ArrayList<>();
+    int rowIndex = 0;
+
+    // Excel starts UTF-8 CSV files with a byte order mark, which would otherwise
+    // end up in the first header cell and hide an opening quote
+    in.mark(1);
+    if (in.read() != '\uFEFF') in.reset();
+
+    while (readRecord(in, delimiter, fields)) {
+      Row r = sheet.createRow(rowIndex++);
+      for (int i = 0; i < fields.size(); i++) {
+        String f = fields.get(i);
+        if (f.isEmpty()) continue;
+
+        if (inferTypes) {
+          String trimmed = f.trim();
+          if (Plugin.ZPEXLSXSheetObject.isNumeric(trimmed)) {
+            r.createCell(i).setCellValue(Double.parseDouble(trimmed));
+            continue;
+          }
+          if ("true".equalsIgnoreCase(trimmed) || "false".equalsIgnoreCase(trimmed)) {
+            r.createCell(i).setCellValue(Boolean.parseBoolean(trimmed));
+            continue;
+          }
+        }
+        r.createCell(i).setCellValue(f);
+      }
+    }
+    return rowIndex;
+  }
+
+  /**
+   * Writes the remaining rows of the reader as CSV records. Rows missing from
+   * the sheet become empty lines so that line numbers match row numbers.
+   * Returns the number of lines written.
+   */
+  static int copyFromSheet(XLSXSheetReader reader, Writer out, char delimiter) throws Exception {
+    int next = 0;
+    while (reader.nextRow()) {
+      while (next < reader.getRowNum()) {
+        out.write("\r\n");
+        next++;
+      }
+      writeRecord(out, delimiter, reader.getValues());
+      next++;
+    }
+    return next;
+  }
+
+  /**
+   * Reads the next record into fields. Returns false at the end of the input.
+   */
+  static boolean readRecord(BufferedReader in, char delimiter, List<String> fields) throws IOException {
+    fields.clear();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    boolean any = false;
+
+    int ch;
+    while ((ch = in.read()) != -1) {
+      any = true;
+      if (quoted) {
+        if (ch == '"') {
+          in.mark(1);
+          int nextCh = in.read();
+          if (nextCh == '"') {
+            field.append('"');
+          } else {
+            quoted = false;
+            if (nextCh != -1) in.reset();
+          }
+        } else {
+          field.append((char) ch);
+        }
+      } else if (ch == '"' && field.length() == 0) {
+        quoted = true;
+      } else if (ch == delimiter) {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else if (ch == '\n') {
+        break;
+      } else if (ch == '\r') {
+        in.mark(1);
+        if (in.read() != '\n') in.reset();
+        break;
+      } else {
+        field.append((char) ch);
+      }
+    }
+
+    if (!any) return false;
+    fields.add(field.toString());
+    return true;
+  }
+
+  static void writeRecord(Writer out, char delimiter, List<Object> values) throws IOException {
+    for (int i = 0; i < values.size(); i++) {
+      if (i > 0) out.write(delimiter);
+      Object v = values.get(i);
+      if (v == null) continue;
+
+      if (v instanceof Double) {
+        out.write(formatNumber((Double) v));
+      } else if (v instanceof Boolean) {
+        out.write(v.toString());
+      } else {
+        writeField(out, delimiter, v.toString());
+      }
+    }
+    out.write("\r\n");
+  }
+
+  private static void writeField(Writer out, char delimiter, String s) throws IOException {
+    boolean quote = false;
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      if (ch == delimiter || ch == '"' || ch == '\n' || ch == '\r') {
+        quote = true;
+        break;
+      }
+    }
+    if (!quote) {
+      out.write(s);
+      return;
+    }
+
+    out.write('"');
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      if (ch == '"') out.write('"');
+      out.write(ch);
+    }
+    out.write('"');
+  }
+
+  /**
+   * Whole numbers are written without a fraction and nothing is written in
+   * exponent notation.
+   */
+  static String formatNumber(double d) {
+    if (d == Math.rint(d) && Math.abs(d) < 1e15) {
+      return Long.toString((long) d);
+    }
+    if (Double.isNaN(d) || Double.isInfinite(d)) {
+      return Double.toString(d);
+    }
+    return BigDecimal.valueOf(d).toPlainString();
+  }
+}
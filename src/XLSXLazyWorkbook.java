@@ -0,0 +1,149 @@
+/*
+ * zpe.lib.xlsx
+ *
+ * XSSF workbook that parses each worksheet part on first use.
+ *
+ * Opening reads the workbook part, styles, shared strings and the package
+ * relationships as usual, but every sheet is registered without parsing its XML.
+ * A sheet is parsed the first time it is returned by getSheetAt or getSheet, so
+ * the sheet count and names are available without loading any sheet. Anything
+ * that walks all sheets (iteration, evaluating every formula, saving) loads the
+ * remaining sheets first, so the rest of POI only ever sees loaded sheets.
+ *
+ * POI has no hook for this, so the sheet registration done by parseSheet is
+ * repeated here through reflection. If that fails with a future POI the sheets
+ * are simply parsed straight away.
+ */
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTSheet;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+
+final class XLSXLazyWorkbook extends XSSFWorkbook {
+
+  private static final Field SHEETS;
+  private static final Field SHEET_CT;
+  private static final Method SHEET_READ;
+
+  static {
+    Field sheets = null;
+    Field sheetCt = null;
+    Method read = null;
+    try {
+      sheets = XSSFWorkbook.class.getDeclaredField("sheets");
+      sheets.setAccessible(true);
+      sheetCt = XSSFSheet.class.getDeclaredField("sheet");
+      sheetCt.setAccessible(true);
+      read = XSSFSheet.class.getDeclaredMethod("onDocumentRead");
+      read.setAccessible(true);
+    } catch (Exception e) {
+      sheets = null;
+    }
+    SHEETS = sheets;
+    SHEET_CT = sheetCt;
+    SHEET_READ = read;
+  }
+
+  // Sheets registered but not parsed yet. Set from parseSheet, which runs
+  // inside the super constructor, so it must not have an initialiser.
+  private Map<XSSFSheet, Boolean> unloaded;
+
+  XLSXLazyWorkbook(OPCPackage pkg) throws IOException {
+    super(pkg);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void parseSheet(Map<String, XSSFSheet> shIdMap, CTSheet ctSheet) {
+    XSSFSheet sh = shIdMap.get(ctSheet.getId());
+    if (SHEETS == null || sh == null) {
+      super.parseSheet(shIdMap, ctSheet);
+      return;
+    }
+
+    try {
+      SHEET_CT.set(sh, ctSheet);
+      ((List<XSSFSheet>) SHEETS.get(this)).add(sh);
+    } catch (IllegalAccessException e) {
+      super.parseSheet(shIdMap, ctSheet);
+      return;
+    }
+    if (unloaded == null) unloaded = new IdentityHashMap<>();
+    unloaded.put(sh, Boolean.TRUE);
+  }
+
+  private XSSFSheet load(XSSFSheet sh) {
+    if (sh == null || unloaded == null || unloaded.remove(sh) == null) return sh;
+    try {
+      SHEET_READ.invoke(sh);
+    } catch (InvocationTargetException e) {
+      unloaded.put(sh, Boolean.TRUE);
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new IllegalStateException(cause);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+    return sh;
+  }
+
+  private void loadAll() {
+    if (unloaded == null || unloaded.isEmpty()) return;
+    for (int i = 0; i < getNumberOfSheets(); i++) {
+      load(super.getSheetAt(i));
+    }
+  }
+
+  int getLoadedSheetCount() {
+    return getNumberOfSheets() - (unloaded == null ? 0 : unloaded.size());
+  }
+
+  @Override
+  public XSSFSheet getSheetAt(int index) {
+    return load(super.getSheetAt(index));
+  }
+
+  @Override
+  public XSSFSheet getSheet(String name) {
+    return load(super.getSheet(name));
+  }
+
+  @Override
+  public Iterator<Sheet> sheetIterator() {
+    loadAll();
+    return super.sheetIterator();
+  }
+
+  @Override
+  public Iterator<Sheet> iterator() {
+    loadAll();
+    return super.iterator();
+  }
+
+  @Override
+  public Spliterator<Sheet> spliterator() {
+    loadAll();
+    return super.spliterator();
+  }
+
+  /**
+   * Runs at the start of a write, before any sheet part is committed.
+   */
+  @Override
+  protected void commit() throws IOException {
+    loadAll();
+    super.commit();
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * zpe.lib.xlsx
+ *
+ * Locking for workbooks shared between script threads.
+ *
+ * POI's models are not thread-safe, so once a workbook is switched to
+ * concurrent mode with set_concurrent every command runs under up to three
+ * locks, always taken in this order:
+ *
+ *   - the workbook lock, held for reading by every sheet command and for
+ *     writing by commands that replace, restructure or walk the whole workbook
+ *     (open, save, add_sheet, evaluate_all and so on),
+ *   - the sheet lock, held for reading by commands that only read the sheet and
+ *     for writing by commands that change it,
+ *   - the shared lock, guarding the state every sheet writes into: the string
+ *     table, the styles table and the formula evaluator's cache. Writers take it
+ *     only around those updates, while readers hold it for reading so that they
+ *     never see a table halfway through an update.
+ *
+ * Any number of threads can read at once, and writers to different sheets only
+ * meet briefly on the shared lock when they store a string or a style. Formula
+ * evaluation reads across sheets, so get_value holds the workbook lock for
+ * writing instead.
+ *
+ * Commands are wrapped once at registration time. For a workbook that is not in
+ * concurrent mode a wrapper costs one volatile read.
+ */
+
+import jamiebalfour.zpe.core.ZPEObject;
+import jamiebalfour.zpe.core.ZPEType;
+import jamiebalfour.zpe.core.interfaces.ZPEObjectNativeMethod;
+
+import java.util.HashMap;
+import java.util.concurrent.locks.Lock;
+
+final class XLSXLocking {
+
+  private enum Access {
+    READ, WRITE, EXCLUSIVE
+  }
+
+  private XLSXLocking() {
+  }
+
+  /**
+   * Shared access to the sheet or workbook the command is called on.
+   */
+  static ZPEObjectNativeMethod reading(ZPEObjectNativeMethod m) {
+    return new LockedNativeMethod(m, Access.READ);
+  }
+
+  /**
+   * Exclusive access to the sheet or workbook the command is called on.
+   */
+  static ZPEObjectNativeMethod writing(ZPEObjectNativeMethod m) {
+    return new LockedNativeMethod(m, Access.WRITE);
+  }
+
+  /**
+   * Exclusive access to the whole workbook, for sheet commands that read other
+   * sheets.
+   */
+  static ZPEObjectNativeMethod exclusive(ZPEObjectNativeMethod m) {
+    return new LockedNativeMethod(m, Access.EXCLUSIVE);
+  }
+
+  private static final class LockedNativeMethod implements ZPEObjectNativeMethod {
+    private final ZPEObjectNativeMethod inner;
+    private final Access access;
+
+    LockedNativeMethod(ZPEObjectNativeMethod inner, Access access) {
+      this.inner = inner;
+      this.access = access;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return inner.getParameterNames();
+    }
+
+    @Override
+    public String[] getParameterTypes() {
+      return inner.getParameterTypes();
+    }
+
+    @Override
+    public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+      Plugin.ZPEXLSXSheetObject so = null;
+      Plugin.ZPEXLSXWorkbookObject wb;
+      if (parent instanceof Plugin.ZPEXLSXSheetObject) {
+        so = (Plugin.ZPEXLSXSheetObject) parent;
+        wb = so.getWorkbookObject();
+      } else if (parent instanceof Plugin.ZPEXLSXWorkbookObject) {
+        wb = (Plugin.ZPEXLSXWorkbookObject) parent;
+      } else {
+        return inner.run(parameters, parent);
+      }
+
+      if (!wb.isConcurrent()) return inner.run(parameters, parent);
+
+      if (so == null || access == Access.EXCLUSIVE) {
+        Lock workbookLock = (access == Access.READ) ? wb.getLock().readLock() : wb.getLock().writeLock();
+        workbookLock.lock();
+        try {
+          return inner.run(parameters, parent);
+        } finally {
+          workbookLock.unlock();
+        }
+      }
+
+      Lock workbookLock = wb.getLock().readLock();
+      workbookLock.lock();
+      try {
+        if (access == Access.WRITE) {
+          Lock sheetLock = so.getLock().writeLock();
+          sheetLock.lock();
+          try {
+            return inner.run(parameters, parent);
+          } finally {
+            sheetLock.unlock();
+          }
+        }
+
+        Lock sheetLock = so.getLock().readLock();
+        Lock sharedLock = wb.getSharedLock().readLock();
+        sheetLock.lock();
+        sharedLock.lock();
+        try {
+          return inner.run(parameters, parent);
+        } finally {
+          sharedLock.unlock();
+          sheetLock.unlock();
+        }
+      } finally {
+        workbookLock.unlock();
+      }
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return inner.getRequiredPermissionLevel();
+    }
+
+    @Override
+    public String getName() {
+      return inner.getName();
+    }
+
+    @Override
+    public byte[] returnTypes() {
+      return inner.returnTypes();
+    }
+  }
+}
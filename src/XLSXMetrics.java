@@ -0,0 +1,266 @@
+/*
+ * zpe.lib.xlsx
+ *
+ * Process-wide metrics for the plugin.
+ *
+ * Native methods and global functions are wrapped once at registration time.
+ * While metrics are switched off (the default) a wrapper costs one volatile
+ * read. While on, each call records its count and latency into a power-of-two
+ * microsecond histogram. Byte counts and parse/serialise times are recorded by
+ * the open and save paths, and the last exception swallowed by a command is
+ * kept for each thread so it can be inspected from a script.
+ */
+
+import jamiebalfour.zpe.core.ZPEFunction;
+import jamiebalfour.zpe.core.ZPEObject;
+import jamiebalfour.zpe.core.ZPERuntimeEnvironment;
+import jamiebalfour.zpe.core.ZPEType;
+import jamiebalfour.zpe.core.interfaces.ZPECustomFunction;
+import jamiebalfour.zpe.core.interfaces.ZPEObjectNativeMethod;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+final class XLSXMetrics {
+
+  // Bucket i counts calls that took less than 2^i microseconds, the last bucket takes the rest
+  private static final int BUCKETS = 26;
+
+  static final class MethodStats {
+    final LongAdder calls = new LongAdder();
+    final LongAdder totalNanos = new LongAdder();
+    final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+      calls.increment();
+      totalNanos.add(nanos);
+      long micros = nanos / 1000;
+      int bucket = (micros == 0) ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+      histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+  }
+
+  private static volatile boolean enabled = false;
+
+  private static final ConcurrentHashMap<String, MethodStats> methods = new ConcurrentHashMap<>();
+  private static final LongAdder bytesRead = new LongAdder();
+  private static final LongAdder bytesWritten = new LongAdder();
+  private static final LongAdder parseNanos = new LongAdder();
+  private static final LongAdder serialiseNanos = new LongAdder();
+  private static final LongAdder errors = new LongAdder();
+
+  // Kept per thread so that concurrent scripts only see their own failures
+  private static final ThreadLocal<Throwable> lastError = new ThreadLocal<>();
+
+  private XLSXMetrics() {
+  }
+
+  static boolean isEnabled() {
+    return enabled;
+  }
+
+  static void setEnabled(boolean on) {
+    enabled = on;
+  }
+
+  /**
+   * Clears the counters, and the last error of the calling thread only.
+   */
+  static void reset() {
+    methods.clear();
+    bytesRead.reset();
+    bytesWritten.reset();
+    parseNanos.reset();
+    serialiseNanos.reset();
+    errors.reset();
+    lastError.remove();
+  }
+
+  /**
+   * Records an exception that a command turned into a false return value. This
+   * is done even while metrics are off as it only happens on failure.
+   */
+  static void recordError(Throwable t) {
+    errors.increment();
+    lastError.set(t);
+  }
+
+  static String getLastError() {
+    Throwable t = lastError.get();
+    if (t == null) return "";
+    return (t.getMessage() == null) ? t.getClass().getName() : t.getClass().getName() + ": " + t.getMessage();
+  }
+
+  static void recordRead(long bytes, long nanos) {
+    if (!enabled) return;
+    bytesRead.add(bytes);
+    parseNanos.add(nanos);
+  }
+
+  static void recordWrite(long bytes, long nanos) {
+    if (!enabled) return;
+    bytesWritten.add(bytes);
+    serialiseNanos.add(nanos);
+  }
+
+  private static void recordCall(String name, long nanos) {
+    methods.computeIfAbsent(name, k -> new MethodStats()).record(nanos);
+  }
+
+  /**
+   * Snapshot of all metrics as plain Java values: Longs, Strings and nested maps.
+   */
+  static Map<String, Object> snapshot() {
+    LinkedHashMap<String, Object> out = new LinkedHashMap<>();
+    out.put("enabled", enabled);
+    out.put("bytes_read", bytesRead.sum());
+    out.put("bytes_written", bytesWritten.sum());
+    out.put("parse_ms", parseNanos.sum() / 1000000);
+    out.put("serialise_ms", serialiseNanos.sum() / 1000000);
+    out.put("errors", errors.sum());
+    out.put("last_error", getLastError());
+
+    TreeMap<String, Object> perMethod = new TreeMap<>();
+    for (Map.Entry<String, MethodStats> e : methods.entrySet()) {
+      MethodStats s = e.getValue();
+      long calls = s.calls.sum();
+
+      LinkedHashMap<String, Object> m = new LinkedHashMap<>();
+      m.put("calls", calls);
+      m.put("total_us", s.totalNanos.sum() / 1000);
+      m.put("mean_us", calls == 0 ? 0L : s.totalNanos.sum() / 1000 / calls);
+
+      LinkedHashMap<String, Object> histogram = new LinkedHashMap<>();
+      for (int i = 0; i < BUCKETS; i++) {
+        long n = s.histogram.get(i);
+        if (n == 0) continue;
+        histogram.put(i == BUCKETS - 1 ? "more" : "<" + (1L << i) + "us", n);
+      }
+      m.put("histogram", histogram);
+
+      perMethod.put(e.getKey(), m);
+    }
+    out.put("methods", perMethod);
+    return out;
+  }
+
+  static ZPEObjectNativeMethod timed(String objectName, ZPEObjectNativeMethod m) {
+    return new TimedNativeMethod(objectName + "." + m.getName(), m);
+  }
+
+  static ZPEObjectNativeMethod[] timed(String objectName, ZPEObjectNativeMethod... ms) {
+    ZPEObjectNativeMethod[] out = new ZPEObjectNativeMethod[ms.length];
+    for (int i = 0; i < ms.length; i++) {
+      out[i] = timed(objectName, ms[i]);
+    }
+    return out;
+  }
+
+  static ZPECustomFunction timed(String name, ZPECustomFunction f) {
+    return new TimedFunction(name, f);
+  }
+
+  private static final class TimedNativeMethod implements ZPEObjectNativeMethod {
+    private final String key;
+    private final ZPEObjectNativeMethod inner;
+
+    TimedNativeMethod(String key, ZPEObjectNativeMethod inner) {
+      this.key = key;
+      this.inner = inner;
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return inner.getParameterNames();
+    }
+
+    @Override
+    public String[] getParameterTypes() {
+      return inner.getParameterTypes();
+    }
+
+    @Override
+    public ZPEType run(HashMap<String, ZPEType> parameters, ZPEObject parent) {
+      if (!enabled) return inner.run(parameters, parent);
+
+      long start = System.nanoTime();
+      try {
+        return inner.run(parameters, parent);
+      } finally {
+        recordCall(key, System.nanoTime() - start);
+      }
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return inner.getRequiredPermissionLevel();
+    }
+
+    @Override
+    public String getName() {
+      return inner.getName();
+    }
+
+    @Override
+    public byte[] returnTypes() {
+      return inner.returnTypes();
+    }
+  }
+
+  private static final class TimedFunction implements ZPECustomFunction {
+    private final String key;
+    private final ZPECustomFunction inner;
+
+    TimedFunction(String key, ZPECustomFunction inner) {
+      this.key = key;
+      this.inner = inner;
+    }
+
+    @Override
+    public String getManualEntry() {
+      return inner.getManualEntry();
+    }
+
+    @Override
+    public String getManualHeader() {
+      return inner.getManualHeader();
+    }
+
+    @Override
+    public int getMinimumParameters() {
+      return inner.getMinimumParameters();
+    }
+
+    @Override
+    public String[] getParameterNames() {
+      return inner.getParameterNames();
+    }
+
+    @Override
+    public ZPEType MainMethod(HashMap<String, Object> params, ZPERuntimeEnvironment runtime, ZPEFunction fn) {
+      if (!enabled) return inner.MainMethod(params, runtime, fn);
+
+      long start = System.nanoTime();
+      try {
+        return inner.MainMethod(params, runtime, fn);
+      } finally {
+        recordCall(key, System.nanoTime() - start);
+      }
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+      return inner.getRequiredPermissionLevel();
+    }
+
+    @Override
+    public byte[] getReturnTypes() {
+      return inner.getReturnTypes();
+    }
+  }
+}
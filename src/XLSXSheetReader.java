@@ -0,0 +1,263 @@
+/*
+ * zpe.lib.xlsx
+ *
+ * Forward-only StAX reader over a single worksheet part.
+ *
+ * Only the current row is held in memory. Shared strings are resolved through a
+ * read-only table and formula cells report their cached value.
+ */
+
+import jamiebalfour.HelperFunctions;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.SharedStrings;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+
+final class XLSXSheetReader implements Closeable {
+
+  private final OPCPackage owner;
+  private final SharedStrings strings;
+  private final InputStream in;
+  private final XMLStreamReader xml;
+
+  private final ArrayList<Object> values = new ArrayList<>();
+  private BitSet columns = null;
+  private int rowNum = -1;
+  private boolean finished = false;
+
+  /**
+   * The owner package is closed along with the reader. Readers that share a
+   * package opened elsewhere pass null.
+   */
+  private XLSXSheetReader(OPCPackage owner, SharedStrings strings, InputStream in) throws XMLStreamException {
+    this.owner = owner;
+    this.strings = strings;
+    this.in = in;
+    this.xml = XMLHelper.newXMLInputFactory().createXMLStreamReader(in);
+  }
+
+  /**
+   * Opens the sheet given by name or zero-based index. Returns null if the
+   * sheet does not exist.
+   */
+  static XLSXSheetReader open(File file, String nameOrIndex) throws Exception {
+    long start = System.nanoTime();
+    OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+    try {
+      XSSFReader reader = new XSSFReader(pkg);
+      InputStream in = findSheet(reader, nameOrIndex);
+      if (in == null) {
+        pkg.revert();
+        return null;
+      }
+      XLSXSheetReader r = new XLSXSheetReader(pkg, new ReadOnlySharedStringsTable(pkg, false), in);
+      // Rows are parsed on demand, so only the package and shared strings count as parse time
+      XLSXMetrics.recordRead(file.length(), System.nanoTime() - start);
+      return r;
+    } catch (Exception e) {
+      pkg.revert();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a reader for every sheet in the package, in workbook order. All of the
+   * readers share one read-only shared strings table, so they can be consumed on
+   * different threads. The caller remains responsible for closing the package.
+   */
+  static LinkedHashMap<String, XLSXSheetReader> openAll(OPCPackage pkg) throws Exception {
+    XSSFReader reader = new XSSFReader(pkg);
+    SharedStrings strings = new ReadOnlySharedStringsTable(pkg, false);
+
+    LinkedHashMap<String, XLSXSheetReader> readers = new LinkedHashMap<>();
+    XSSFReader.SheetIterator it = (XSSFReader.SheetIterator) reader.getSheetsData();
+    try {
+      while (it.hasNext()) {
+        InputStream in = it.next();
+        readers.put(it.getSheetName(), new XLSXSheetReader(null, strings, in));
+      }
+    } catch (Exception e) {
+      for (XLSXSheetReader r : readers.values()) r.close();
+      throw e;
+    }
+    return readers;
+  }
+
+  private static InputStream findSheet(XSSFReader reader, String nameOrIndex) throws Exception {
+    Integer idx = null;
+    try {
+      idx = HelperFunctions.stringToInteger(nameOrIndex);
+    } catch (Exception ignored) {
+    }
+
+    XSSFReader.SheetIterator it = (XSSFReader.SheetIterator) reader.getSheetsData();
+    int i = 0;
+    while (it.hasNext()) {
+      InputStream in = it.next();
+      if ((idx != null && idx == i) || (idx == null && it.getSheetName().equals(nameOrIndex))) {
+        return in;
+      }
+      in.close();
+      i++;
+    }
+    return null;
+  }
+
+  /**
+   * Moves to the next row element in the sheet. Rows that are not stored in the
+   * file are skipped, so the row number may jump.
+   */
+  boolean nextRow() throws XMLStreamException {
+    if (finished) return false;
+
+    while (xml.hasNext()) {
+      int ev = xml.next();
+      if (ev == XMLStreamConstants.START_ELEMENT && "row".equals(xml.getLocalName())) {
+        String r = xml.getAttributeValue(null, "r");
+        rowNum = (r == null) ? rowNum + 1 : Integer.parseInt(r) - 1;
+        readRow();
+        return true;
+      }
+      if (ev == XMLStreamConstants.END_ELEMENT && "sheetData".equals(xml.getLocalName())) {
+        break;
+      }
+    }
+
+    finished = true;
+    return false;
+  }
+
+  private void readRow() throws XMLStreamException {
+    values.clear();
+    int col = -1;
+
+    while (xml.hasNext()) {
+      int ev = xml.next();
+      if (ev == XMLStreamConstants.START_ELEMENT && "c".equals(xml.getLocalName())) {
+        String ref = xml.getAttributeValue(null, "r");
+        col = (ref == null) ? col + 1 : columnOf(ref);
+        if (columns != null && !columns.get(col)) {
+          skipElement();
+          continue;
+        }
+        Object v = readCell(xml.getAttributeValue(null, "t"));
+        if (v != null) {
+          while (values.size() <= col) values.add(null);
+          values.set(col, v);
+        }
+      } else if (ev == XMLStreamConstants.END_ELEMENT && "row".equals(xml.getLocalName())) {
+        return;
+      }
+    }
+  }
+
+  private Object readCell(String type) throws XMLStreamException {
+    String v = null;
+    StringBuilder inline = null;
+
+    while (xml.hasNext()) {
+      int ev = xml.next();
+      if (ev == XMLStreamConstants.START_ELEMENT) {
+        String name = xml.getLocalName();
+        if ("v".equals(name)) {
+          v = xml.getElementText();
+        } else if ("t".equals(name)) {
+          if (inline == null) inline = new StringBuilder();
+          inline.append(xml.getElementText());
+        } else if ("rPh".equals(name)) {
+          skipElement();
+        }
+      } else if (ev == XMLStreamConstants.END_ELEMENT && "c".equals(xml.getLocalName())) {
+        break;
+      }
+    }
+
+    if ("inlineStr".equals(type)) {
+      return inline == null ? "" : inline.toString();
+    }
+    if (v == null) return null;
+
+    if (type == null || "n".equals(type)) {
+      return Double.parseDouble(v);
+    }
+    switch (type) {
+      case "s":
+        return strings.getItemAt(Integer.parseInt(v)).getString();
+      case "b":
+        return "1".equals(v) || "true".equalsIgnoreCase(v);
+      case "str":
+      case "e":
+      default:
+        return v;
+    }
+  }
+
+  private void skipElement() throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0 && xml.hasNext()) {
+      int ev = xml.next();
+      if (ev == XMLStreamConstants.START_ELEMENT) depth++;
+      else if (ev == XMLStreamConstants.END_ELEMENT) depth--;
+    }
+  }
+
+  /**
+   * Converts the letters of a cell reference such as "AB12" to a zero-based
+   * column index.
+   */
+  static int columnOf(String ref) {
+    int col = 0;
+    for (int i = 0; i < ref.length(); i++) {
+      char ch = ref.charAt(i);
+      if (ch < 'A' || ch > 'Z') break;
+      col = col * 26 + (ch - 'A' + 1);
+    }
+    return col - 1;
+  }
+
+  /**
+   * Restricts reading to the given columns. Cells in other columns are skipped
+   * without resolving shared strings or parsing numbers and read as null.
+   */
+  void setColumns(BitSet columns) {
+    this.columns = columns;
+  }
+
+  /**
+   * Zero-based number of the current row.
+   */
+  int getRowNum() {
+    return rowNum;
+  }
+
+  /**
+   * Values of the current row indexed by column. Empty cells are null and the
+   * list is reused by the next call to nextRow.
+   */
+  ArrayList<Object> getValues() {
+    return values;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      xml.close();
+    } catch (XMLStreamException ignored) {
+    }
+    in.close();
+    if (owner != null) owner.revert();
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * zpe.lib.xlsx
+ *
+ * Per-workbook registry of cell styles.
+ *
+ * A style definition is applied on top of the style a cell already has, so
+ * setting bold on a date keeps its number format. Each pair of existing style
+ * and definition is interned to a single CellStyle (and fonts to a single
+ * Font), so styling many cells only adds a handful of entries to the workbook's
+ * styles table.
+ */
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.FillPatternType;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+
+import java.util.HashMap;
+import java.util.Objects;
+
+final class XLSXStyleRegistry {
+
+  /**
+   * Immutable style definition used as the registry key. Null fields keep the
+   * value of the style it is applied to.
+   */
+  static final class Style {
+    final String numberFormat;
+    final Boolean bold;
+    final Boolean italic;
+    final String fontColor;
+    final String fill;
+    final HorizontalAlignment align;
+    final Boolean wrap;
+
+    Style(String numberFormat, Boolean bold, Boolean italic, String fontColor, String fill, HorizontalAlignment align, Boolean wrap) {
+      this.numberFormat = numberFormat;
+      this.bold = bold;
+      this.italic = italic;
+      this.fontColor = normaliseColour(fontColor);
+      this.fill = normaliseColour(fill);
+      this.align = align;
+      this.wrap = wrap;
+    }
+
+    private boolean hasFont() {
+      return bold != null || italic != null || fontColor != null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Style)) return false;
+      Style s = (Style) o;
+      return Objects.equals(bold, s.bold) && Objects.equals(italic, s.italic) && Objects.equals(wrap, s.wrap) &&
+          Objects.equals(numberFormat, s.numberFormat) && Objects.equals(fontColor, s.fontColor) &&
+          Objects.equals(fill, s.fill) && align == s.align;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(numberFormat, bold, italic, fontColor, fill, align, wrap);
+    }
+  }
+
+  private final Workbook workbook;
+  // Index of the existing style -> definition applied to it -> resulting style
+  private final HashMap<Integer, HashMap<Style, CellStyle>> styles = new HashMap<>();
+  private final HashMap<String, Font> fonts = new HashMap<>();
+  private int created = 0;
+
+  XLSXStyleRegistry(Workbook workbook) {
+    this.workbook = workbook;
+  }
+
+  /**
+   * Returns the style made by applying the definition to base, creating it the
+   * first time the pair is seen.
+   */
+  CellStyle get(CellStyle base, Style style) {
+    HashMap<Style, CellStyle> derived = styles.computeIfAbsent((int) base.getIndex(), k -> new HashMap<>());
+    CellStyle cs = derived.get(style);
+    if (cs == null) {
+      cs = create(base, style);
+      derived.put(style, cs);
+      // Applying the same definition again changes nothing
+      styles.computeIfAbsent((int) cs.getIndex(), k -> new HashMap<>()).put(style, cs);
+      created++;
+    }
+    return cs;
+  }
+
+  int size() {
+    return created;
+  }
+
+  private CellStyle create(CellStyle base, Style style) {
+    CellStyle cs = workbook.createCellStyle();
+    cs.cloneStyleFrom(base);
+
+    if (style.numberFormat != null) {
+      cs.setDataFormat(workbook.createDataFormat().getFormat(style.numberFormat));
+    }
+    if (style.hasFont()) {
+      cs.setFont(font(workbook.getFontAt(base.getFontIndex()), style));
+    }
+    if (style.fill != null) {
+      ((XSSFCellStyle) cs).setFillForegroundColor(color(style.fill));
+      cs.setFillPattern(FillPatternType.SOLID_FOREGROUND);
+    }
+    if (style.align != null) {
+      cs.setAlignment(style.align);
+    }
+    if (style.wrap != null) {
+      cs.setWrapText(style.wrap);
+    }
+    return cs;
+  }
+
+  /**
+   * Copies the base font, so that its name and size are kept, and changes what
+   * the definition sets.
+   */
+  private Font font(Font base, Style style) {
+    String key = base.getIndex() + "|" + style.bold + "|" + style.italic + "|" + style.fontColor;
+    Font f = fonts.get(key);
+    if (f == null) {
+      f = workbook.createFont();
+      ((XSSFFont) f).getCTFont().set(((XSSFFont) base).getCTFont());
+      if (style.bold != null) f.setBold(style.bold);
+      if (style.italic != null) f.setItalic(style.italic);
+      if (style.fontColor != null) {
+        ((XSSFFont) f).setColor(color(style.fontColor));
+      }
+      fonts.put(key, f);
+    }
+    return f;
+  }
+
+  /**
+   * Accepts colours such as "ff0000" or "#FF0000" and returns them as six
+   * upper-case hex digits, so equal colours make equal keys.
+   */
+  static String normaliseColour(String hex) {
+    if (hex == null) return null;
+    String h = hex.startsWith("#") ? hex.substring(1) : hex;
+    if (h.length() != 6) throw new IllegalArgumentException("Colour must be six hex digits: " + hex);
+    Integer.parseInt(h, 16);
+    return h.toUpperCase();
+  }
+
+  private static XSSFColor color(String hex) {
+    int rgb = Integer.parseInt(hex, 16);
+    return new XSSFColor(new byte[]{(byte) (rgb >> 16), (byte) (rgb >> 8), (byte) rgb}, null);
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * zpe.lib.xlsx
+ *
+ * Process-wide cache of template workbooks.
+ *
+ * POI has no way to copy a parsed workbook, so a template is parsed once when it
+ * is first opened and kept as a snapshot: the workbook written back out by POI
+ * without compression. Copies are parsed from the snapshot, so they can be
+ * changed independently and never touch the template file. A template that
+ * does not parse is never cached.
+ *
+ * Parsing a copy costs about as much as opening the file, so each entry also
+ * keeps one spare copy that is parsed in the background. An open takes the spare
+ * if it is ready and starts parsing the next one, which means a script that
+ * opens the same template over and over normally only waits the first time.
+ *
+ * Entries are keyed by canonical path and are only reused while the file's
+ * modification time and size are unchanged. The cache is bounded by the total
+ * number of snapshot bytes held and evicts the least recently used entries
+ * first.
+ */
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.util.ZipFileZipEntrySource;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.Deflater;
+
+final class XLSXTemplateCache {
+
+  static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  private static final XLSXTemplateCache INSTANCE = new XLSXTemplateCache(DEFAULT_MAX_BYTES);
+
+  private static final class Entry {
+    final String key;
+    final long lastModified;
+    final long length;
+    final byte[] snapshot;
+    CompletableFuture<XSSFWorkbook> spare;
+
+    Entry(String key, long lastModified, long length, byte[] snapshot) {
+      this.key = key;
+      this.lastModified = lastModified;
+      this.length = length;
+      this.snapshot = snapshot;
+    }
+  }
+
+  // Access ordered, so iteration starts at the least recently used entry
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final long maxBytes;
+  private long bytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  private XLSXTemplateCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  static XLSXTemplateCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns a new copy of the template, parsing the file only if it is not
+   * cached or has changed since it was cached.
+   */
+  XSSFWorkbook open(File file) throws IOException, InvalidFormatException {
+    CompletableFuture<XSSFWorkbook> spare;
+    byte[] snapshot;
+    synchronized (this) {
+      Entry e = get(file);
+      snapshot = e.snapshot;
+      spare = e.spare;
+      if (entries.get(e.key) == e) {
+        e.spare = CompletableFuture.supplyAsync(() -> copyUnchecked(e.snapshot));
+      }
+    }
+
+    if (spare != null) {
+      try {
+        return spare.join();
+      } catch (CompletionException ex) {
+        // Parsing the same snapshot again below reports the error to the caller
+      }
+    }
+    return copy(snapshot);
+  }
+
+  private Entry get(File file) throws IOException, InvalidFormatException {
+    String key = file.getCanonicalPath();
+    long lastModified = file.lastModified();
+    long length = file.length();
+
+    Entry e = entries.get(key);
+    if (e != null && e.lastModified == lastModified && e.length == length) {
+      hits++;
+      return e;
+    }
+
+    misses++;
+    if (e != null) remove(key);
+
+    e = new Entry(key, lastModified, length, parse(file));
+    if (e.snapshot.length <= maxBytes) {
+      entries.put(key, e);
+      bytes += e.snapshot.length;
+      trim();
+    }
+    return e;
+  }
+
+  /**
+   * Parses a copy from a snapshot. Parts are read from the array as they are
+   * needed, the way a package opened from a file reads its zip entries, rather
+   * than all being copied up front as they are when opening from a stream. The
+   * snapshot itself is never written to.
+   */
+  private static XSSFWorkbook copy(byte[] snapshot) throws IOException, InvalidFormatException {
+    ZipFile zip = ZipFile.builder().setSeekableByteChannel(new SeekableInMemoryByteChannel(snapshot)).get();
+    try {
+      return new XSSFWorkbook(OPCPackage.open(new ZipFileZipEntrySource(zip)));
+    } catch (IOException | InvalidFormatException | RuntimeException e) {
+      zip.close();
+      throw e;
+    }
+  }
+
+  private static XSSFWorkbook copyUnchecked(byte[] snapshot) {
+    try {
+      return copy(snapshot);
+    } catch (IOException | InvalidFormatException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  synchronized Map<String, Long> getStats() {
+    LinkedHashMap<String, Long> stats = new LinkedHashMap<>();
+    stats.put("entries", (long) entries.size());
+    stats.put("bytes", bytes);
+    stats.put("max_bytes", maxBytes);
+    stats.put("hits", hits);
+    stats.put("misses", misses);
+    stats.put("evictions", evictions);
+    return stats;
+  }
+
+  private static byte[] parse(File file) throws IOException, InvalidFormatException {
+    // Writing needs a writable package, reverting it leaves the file untouched
+    OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ_WRITE);
+    try {
+      XSSFWorkbook workbook = new XSSFWorkbook(pkg);
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, file.length() * 4));
+      ZipArchiveOutputStream zos = new ZipArchiveOutputStream(out);
+      zos.setLevel(Deflater.NO_COMPRESSION);
+      workbook.write(zos);
+      return out.toByteArray();
+    } finally {
+      pkg.revert();
+    }
+  }
+
+  private void remove(String key) {
+    Entry e = entries.remove(key);
+    if (e != null) drop(e);
+  }
+
+  private void trim() {
+    Iterator<Entry> it = entries.values().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      drop(it.next());
+      it.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * Spares live in memory only, so one that is already parsed is simply left to
+   * the garbage collector.
+   */
+  private void drop(Entry e) {
+    bytes -= e.snapshot.length;
+    if (e.spare != null) e.spare.cancel(false);
+  }
+}